@@ -1,372 +1,3262 @@
-/*
- * FullDoH - Local DNS-over-HTTPS (DoH) Proxy
- *
- * An educational Java server that translates standard DNS queries
- * into DNS-over-HTTPS (DoH) requests and converts the responses back
- * into DNS format for local clients.
- *
- * This project is intended for learning and research purposes only.
- * It demonstrates DNS packet parsing, HTTPS transport, and protocol
- * translation without attempting to bypass network security controls.
- *
- * Copyright © 2026 FullDoH Contributors
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at:
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-import javax.net.ssl.HttpsURLConnection;
-import java.io.*;
-import java.net.*;
-import java.time.Instant;
-import java.util.*;
-import java.util.concurrent.*;
-/**
- * FullDoHBinaryServer
- *
- * - UDP + TCP DNS server on port 53
- * - Uses Google DoH binary API (RFC8484): POST https://dns.google/dns-query (application/dns-message)
- * - Forwards raw wire-format DNS query and returns raw wire-format DNS response
- * - UDP responses > 512 are truncated (TC bit set)
- * - Returns SERVFAIL (including original question) on DoH failure
- *
- * Notes:
- * - Run as Administrator/root to bind port 53.
- * - This is a pragmatic resolver/proxy — not a full authoritative server implementation.
- */
-
-//Kept all code in one file, so that anyone can run it easily using command prompt with one command java FullDoHBinaryServer.java
-public class FullDoHBinaryServer {
-
-    private static final int PORT = 53;
-    private static final int UDP_BUF_SIZE = 4096;
-    private static final String DOH_URL = "https://dns.google/dns-query";
-    private static final int DOH_TIMEOUT_MS = 4000;
-    private static final int THREADS = 8;
-    private static final boolean LOG = true;
-
-    private static final ExecutorService EXEC = Executors.newFixedThreadPool(THREADS);
-
-    public static void main(String[] args) throws Exception {
-        log("Starting FullDoHBinaryServer on port " + PORT);
-
-        // UDP listener
-        Thread udpThread = new Thread(() -> {
-            try (DatagramSocket ds = new DatagramSocket(PORT)) {
-                ds.setReceiveBufferSize(UDP_BUF_SIZE);
-                log("UDP socket bound on " + PORT);
-                byte[] buf = new byte[UDP_BUF_SIZE];
-                while (true) {
-                    DatagramPacket p = new DatagramPacket(buf, buf.length);
-                    ds.receive(p);
-                    byte[] req = Arrays.copyOf(p.getData(), p.getLength());
-                    InetAddress clientAddr = p.getAddress();
-                    int clientPort = p.getPort();
-                    EXEC.submit(() -> handleUdpRequest(ds, clientAddr, clientPort, req));
-                }
-            } catch (BindException be) {
-                log("ERROR: Bind failed on port " + PORT + ". Are you running as admin/root? " + be.getMessage());
-            } catch (Exception e) {
-                log("UDP listener error: " + e.getMessage());
-                e.printStackTrace();
-            }
-        }, "udp-listener");
-        udpThread.setDaemon(false);
-        udpThread.start();
-
-        // TCP listener
-        Thread tcpThread = new Thread(() -> {
-            try (ServerSocket ss = new ServerSocket(PORT)) {
-                log("TCP socket bound on " + PORT);
-                while (true) {
-                    Socket s = ss.accept();
-                    EXEC.submit(() -> handleTcpConnection(s));
-                }
-            } catch (BindException be) {
-                log("ERROR: Bind failed on port " + PORT + ". Are you running as admin/root? " + be.getMessage());
-            } catch (Exception e) {
-                log("TCP listener error: " + e.getMessage());
-                e.printStackTrace();
-            }
-        }, "tcp-listener");
-        tcpThread.setDaemon(false);
-        tcpThread.start();
-    }
-
-    // --------------------
-    // UDP handler
-    // --------------------
-    private static void handleUdpRequest(DatagramSocket serverSocket, InetAddress clientAddr, int clientPort, byte[] request) {
-        try {
-            String qname = tryExtractDomainSafe(request);
-            int qtype = tryExtractQTypeSafe(request);
-            logf("UDP Query from %s:%d ? %s type=%d", clientAddr.getHostAddress(), clientPort, qname == null ? "<unknown>" : qname, qtype);
-
-            byte[] dohResp = dohBinaryQuery(request); // raw wire-format response
-
-            if (dohResp == null || dohResp.length == 0) {
-                log("DoH failed - returning SERVFAIL to " + clientAddr.getHostAddress() + ":" + clientPort);
-                byte[] serv = buildServfailWithQuestion(request);
-                DatagramPacket respPacket = new DatagramPacket(serv, serv.length, clientAddr, clientPort);
-                serverSocket.send(respPacket);
-                log("Sent SERVFAIL UDP response (" + serv.length + " bytes) to " + clientAddr.getHostAddress() + ":" + clientPort);
-                return;
-            }
-
-            // If response larger than 512 bytes, truncate and set TC bit
-            if (dohResp.length > 512) {
-                byte[] truncated = Arrays.copyOf(dohResp, 512);
-                // set TC bit in header: use mask 0x02 on header byte 2 (flags high)
-                truncated[2] = (byte) (truncated[2] | 0x02);
-                DatagramPacket respPacket = new DatagramPacket(truncated, truncated.length, clientAddr, clientPort);
-                serverSocket.send(respPacket);
-                log("Sent UDP TRUNCATED response to " + clientAddr.getHostAddress() + ":" + clientPort + " (" + truncated.length + " bytes)");
-            } else {
-                DatagramPacket respPacket = new DatagramPacket(dohResp, dohResp.length, clientAddr, clientPort);
-                serverSocket.send(respPacket);
-                log("Sent UDP response to " + clientAddr.getHostAddress() + ":" + clientPort + " (" + dohResp.length + " bytes)");
-            }
-
-        } catch (Exception e) {
-            log("handleUdpRequest error: " + e.getMessage());
-            e.printStackTrace();
-        }
-    }
-
-    // --------------------
-    // TCP handler
-    // --------------------
-    private static void handleTcpConnection(Socket s) {
-        try (Socket sock = s;
-             InputStream in = sock.getInputStream();
-             OutputStream out = sock.getOutputStream()) {
-
-            // Read 2-byte length prefix
-            byte[] lenBuf = new byte[2];
-            if (in.read(lenBuf) != 2) return;
-            int len = ((lenBuf[0] & 0xFF) << 8) | (lenBuf[1] & 0xFF);
-            if (len <= 0 || len > 65535) return;
-
-            byte[] req = new byte[len];
-            int read = 0;
-            while (read < len) {
-                int r = in.read(req, read, len - read);
-                if (r < 0) throw new EOFException("Unexpected EOF on TCP read");
-                read += r;
-            }
-
-            String qname = tryExtractDomainSafe(req);
-            int qtype = tryExtractQTypeSafe(req);
-            logf("TCP Query from %s:%d ? %s type=%d", sock.getInetAddress().getHostAddress(), sock.getPort(), qname == null ? "<unknown>" : qname, qtype);
-
-            byte[] dohResp = dohBinaryQuery(req);
-
-            if (dohResp == null || dohResp.length == 0) {
-                log("DoH failed for TCP - returning SERVFAIL to " + sock.getInetAddress().getHostAddress());
-                byte[] serv = buildServfailWithQuestion(req);
-                byte[] outLen = new byte[]{(byte) ((serv.length >> 8) & 0xFF), (byte) (serv.length & 0xFF)};
-                try {
-                    out.write(outLen);
-                    out.write(serv);
-                    out.flush();
-                    log("Sent TCP SERVFAIL to " + sock.getInetAddress().getHostAddress());
-                } catch (SocketException se) {
-                    log("Client aborted TCP connection (normal): " + se.getMessage());
-                }
-                return;
-            }
-
-            // send length prefixed full response
-            byte[] outLen = new byte[]{(byte) ((dohResp.length >> 8) & 0xFF), (byte) (dohResp.length & 0xFF)};
-            try {
-                out.write(outLen);
-                out.write(dohResp);
-                out.flush();
-                log("Sent TCP response to " + sock.getInetAddress().getHostAddress() + " (" + dohResp.length + " bytes)");
-            } catch (SocketException se) {
-                log("Client aborted TCP connection (normal): " + se.getMessage());
-            } catch (IOException ioe) {
-                log("TCP write error: " + ioe.getMessage());
-            }
-
-        } catch (Exception e) {
-            log("TCP connection error: " + e.getMessage());
-            if (!(e instanceof SocketException)) e.printStackTrace();
-        }
-    }
-
-    // --------------------
-    // DoH binary exchange (POST application/dns-message)
-    // --------------------
-    private static byte[] dohBinaryQuery(byte[] query) {
-        HttpsURLConnection conn = null;
-        try {
-            URL url = new URL(DOH_URL);
-            conn = (HttpsURLConnection) url.openConnection();
-            conn.setConnectTimeout(DOH_TIMEOUT_MS);
-            conn.setReadTimeout(DOH_TIMEOUT_MS);
-            conn.setRequestMethod("POST");
-            conn.setDoOutput(true);
-            conn.setRequestProperty("Content-Type", "application/dns-message");
-            conn.setRequestProperty("Accept", "application/dns-message");
-            conn.setInstanceFollowRedirects(false);
-
-            // send raw wire-format query
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(query);
-                os.flush();
-            }
-
-            int code = conn.getResponseCode();
-            if (code != 200) {
-                log("DoH non-200: " + code + " from " + DOH_URL);
-                // try to read any error body (optional)
-                try { String err = readAll(conn.getErrorStream()); if (err != null && !err.isEmpty()) log("DoH error body: " + err); } catch (Exception ignored) {}
-                return null;
-            }
-
-            try (InputStream is = conn.getInputStream();
-                 ByteArrayOutputStream bout = new ByteArrayOutputStream()) {
-                byte[] buf = new byte[4096];
-                int r;
-                while ((r = is.read(buf)) > 0) bout.write(buf, 0, r);
-                return bout.toByteArray();
-            }
-
-        } catch (SocketTimeoutException ste) {
-            log("DoH timeout to " + DOH_URL);
-            return null;
-        } catch (Exception e) {
-            log("DoH error -> " + e.getClass().getSimpleName() + ": " + e.getMessage());
-            return null;
-        } finally {
-            if (conn != null) conn.disconnect();
-        }
-    }
-
-    // Build a SERVFAIL response that includes the original question bytes (so clients accept it).
-    // If we cannot parse question, return a minimal 12-byte header with SERVFAIL (less ideal).
-    private static byte[] buildServfailWithQuestion(byte[] request) {
-        try {
-            if (request == null || request.length < 12) {
-                // minimal header: copy what we can
-                byte[] h = new byte[12];
-                Arrays.fill(h, (byte)0);
-                return h;
-            }
-            // copy ID and original header
-            byte[] header = Arrays.copyOfRange(request, 0, 12);
-            // set QR=1 and copy RD bit from original header[2]; set RCODE=2 (SERVFAIL) and RA=1
-            header[2] = (byte) (0x80 | (request[2] & 0x01)); // QR=1 and copy RD
-            header[3] = (byte) 0x82; // RA=1 and RCODE=2 (SERVFAIL)
-            // set ancount=0
-            header[6] = 0; header[7] = 0;
-            // preserve qdcount from original request (already in header[4..5])
-            // find end of question section
-            int qend = findQuestionEnd(request, 12);
-            if (qend <= 12) qend = Math.min(request.length, 12 + 5); // fallback
-            byte[] questionBytes = Arrays.copyOfRange(request, 12, Math.min(qend, request.length));
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            out.write(header);
-            out.write(questionBytes);
-            // No answers
-            return out.toByteArray();
-        } catch (Exception e) {
-            // fallback minimal servfail header
-            byte[] h = new byte[12];
-            Arrays.fill(h, (byte)0);
-            return h;
-        }
-    }
-
-    // Find end position of question section (returns index after QTYPE+QCLASS)
-    private static int findQuestionEnd(byte[] data, int startPos) {
-        int pos = startPos;
-        try {
-            int max = data.length;
-            // skip QNAME
-            while (pos < max && data[pos] != 0) {
-                int len = data[pos] & 0xFF;
-                if (len == 0) { pos++; break; }
-                pos += 1 + len;
-            }
-            if (pos < max && data[pos] == 0) pos++; // skip terminating 0
-            // skip QTYPE + QCLASS (4 bytes)
-            if (pos + 4 <= max) pos += 4;
-            return pos;
-        } catch (Exception e) {
-            return startPos;
-        }
-    }
-
-    // Try to extract question domain string for logging (best-effort)
-    private static String tryExtractDomainSafe(byte[] req) {
-        try {
-            if (req == null || req.length < 13) return null;
-            int pos = 12;
-            StringBuilder sb = new StringBuilder();
-            int max = req.length;
-            while (pos < max) {
-                int len = req[pos++] & 0xFF;
-                if (len == 0) break;
-                if (len > 63 || pos + len > max) break;
-                sb.append(new String(req, pos, len));
-                pos += len;
-                sb.append('.');
-            }
-            if (sb.length() == 0) return "";
-            if (sb.charAt(sb.length()-1) == '.') sb.setLength(sb.length()-1);
-            return sb.toString();
-        } catch (Exception e) {
-            return null;
-        }
-    }
-
-    // Try to extract qtype (best-effort)
-    private static int tryExtractQTypeSafe(byte[] req) {
-        try {
-            if (req == null || req.length < 16) return -1;
-            int pos = findQuestionEnd(req, 12);
-            // QTYPE is two bytes before QCLASS; but easier: go to end of qname then read two bytes QTYPE at pos-4
-            // We'll reparse:
-            pos = 12;
-            int max = req.length;
-            while (pos < max) {
-                int len = req[pos++] & 0xFF;
-                if (len == 0) break;
-                pos += len;
-            }
-            if (pos + 1 >= max) return -1;
-            int qtype = ((req[pos] & 0xFF) << 8) | (req[pos+1] & 0xFF);
-            return qtype;
-        } catch (Exception e) {
-            return -1;
-        }
-    }
-
-    // --------------------
-    // Utilities
-    // --------------------
-    private static String readAll(InputStream in) throws IOException {
-        if (in == null) return null;
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(in))) {
-            StringBuilder sb = new StringBuilder();
-            String l;
-            while ((l = br.readLine()) != null) sb.append(l).append('\n');
-            return sb.toString();
-        }
-    }
-
-    private static void log(String s) { if (LOG) System.out.println("[" + Instant.now() + "] " + s); }
-    private static void logf(String fmt, Object... args) { if (LOG) System.out.println("[" + Instant.now() + "] " + String.format(fmt, args)); }
-}
-
-
+/*
+ * FullDoH - Local DNS-over-HTTPS (DoH) Proxy
+ *
+ * An educational Java server that translates standard DNS queries
+ * into DNS-over-HTTPS (DoH) requests and converts the responses back
+ * into DNS format for local clients.
+ *
+ * This project is intended for learning and research purposes only.
+ * It demonstrates DNS packet parsing, HTTPS transport, and protocol
+ * translation without attempting to bypass network security controls.
+ *
+ * Copyright © 2026 FullDoH Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.security.SecureRandom;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+/**
+ * FullDoHBinaryServer
+ *
+ * - UDP + TCP DNS server on port 53
+ * - Uses DoH binary APIs (RFC8484): POST application/dns-message to Google, Cloudflare or Quad9,
+ *   multiplexed as HTTP/2 streams over a shared, long-lived connection per resolver
+ * - Sends each query to the resolver with the best recent latency and error rate (EWMA), exploring
+ *   the others now and then
+ * - Hedges queries that outlive the resolver's p95 latency with a second copy to another resolver,
+ *   within a budget of extra requests
+ * - Non-blocking pipeline: workers answer cache hits directly and never wait on the upstream, so
+ *   a few threads keep thousands of queries in flight
+ * - Forwards raw wire-format DNS query and returns raw wire-format DNS response
+ * - UDP responses > 512 are truncated (TC bit set); the client's TCP retry is answered from memory
+ * - Returns SERVFAIL (including original question) on DoH failure
+ * - Caches positive answers in memory, honoring the minimum RR TTL of each response
+ * - Caches NXDOMAIN / NODATA answers using the SOA negative TTL (RFC 2308)
+ * - Serves stale cache entries when the DoH upstream fails or is too slow (RFC 8767)
+ * - Remembers upstream failures per question for a short, growing period (RFC 9520)
+ * - Prefetches popular entries shortly before they expire
+ * - On an A or AAAA miss, fetches the sibling type in parallel, learning per domain whether it pays off
+ * - Snapshots the cache to a file and reloads it on restart
+ * - Warms the cache at startup from a file of the most frequent questions
+ * - Optional EDNS Client Subnet toward the upstream, with cache entries partitioned by scope
+ * - Per-client-subnet cache quotas, so one noisy client cannot flush everyone else's entries
+ * - Admin port on localhost to purge cache entries by name, domain suffix or type
+ *
+ * Notes:
+ * - Run as Administrator/root to bind port 53.
+ * - This is a pragmatic resolver/proxy — not a full authoritative server implementation.
+ */
+
+//Kept all code in one file, so that anyone can run it easily using command prompt with one command java FullDoHBinaryServer.java
+public class FullDoHBinaryServer {
+
+    private static final int PORT = 53;
+    private static final int UDP_BUF_SIZE = 4096;
+    private static final int MAX_DNS_MESSAGE = 65535;
+    private static final String[] DOH_URLS = {
+            "https://dns.google/dns-query",
+            "https://cloudflare-dns.com/dns-query",
+            "https://dns.quad9.net/dns-query"
+    };
+    private static final double UPSTREAM_EWMA_WEIGHT = 0.1;  // weight of each new sample in the moving averages
+    private static final int UPSTREAM_EXPLORE_PERCENT = 5;   // queries sent to a random other resolver
+    private static final boolean HEDGE_ENABLED = true;       // resend slow queries to a second resolver
+    private static final int HEDGE_BUDGET_PERCENT = 5;       // max extra upstream requests, as a share of queries
+    private static final int HEDGE_MIN_DELAY_MS = 20;        // never hedge sooner than this, whatever the p95
+    private static final int DOH_TIMEOUT_MS = 4000;
+    private static final int THREADS = 8;
+    private static final boolean VIRTUAL_THREADS = false;    // one virtual thread per request (JDK 21+; else the THREADS pool)
+    private static final boolean LOG = true;
+    private static final boolean LOG_CACHE_HITS = false;     // a line per cache hit (builds Strings on the hit path)
+    private static final int TCP_IDLE_TIMEOUT_MS = 10000;    // close TCP clients that send nothing (RFC 7766)
+
+    // Response cache
+    private static final boolean CACHE_ENABLED = true;
+    private static final long CACHE_MAX_BYTES = 64L * 1024 * 1024;       // key + response + index overhead
+    private static final int CACHE_MAX_TTL_SECS = 86400;
+    private static final long NEG_CACHE_MAX_BYTES = 8L * 1024 * 1024;
+    private static final int CACHE_SHARDS = 4 * Runtime.getRuntime().availableProcessors(); // rounded up to a power of two
+    private static final int NEG_CACHE_MAX_TTL_SECS = 3600;
+    private static final int CACHE_STALE_WINDOW_SECS = 86400;   // how long expired entries may be served (RFC 8767)
+    private static final int STALE_ANSWER_TTL_SECS = 30;
+    private static final int CLIENT_RESPONSE_DEADLINE_MS = 1800; // max wait on the upstream when stale data exists
+    private static final int PREFETCH_MIN_HITS = 3;          // hits to count as hot, again in the stretch just before the prefetch window
+    private static final int PREFETCH_TTL_PERCENT = 10;      // prefetch in the last 10% of the TTL
+    private static final int PREFETCH_MAX_CONCURRENT = 16;
+    private static final boolean SIBLING_PREFETCH = true;     // on an A miss also fetch AAAA, and vice versa
+    private static final int SIBLING_WINDOW = 32;             // speculations per domain between verdicts
+    private static final int SIBLING_MIN_USE_PERCENT = 25;    // below this share of siblings asked for, pause the domain
+    private static final int SIBLING_PAUSE_SECS = 3600;
+    private static final int SIBLING_MAX_DOMAINS = 10000;
+    private static final boolean CACHE_OFF_HEAP = false;     // keep responses in direct-memory slabs (the index stays on-heap)
+    private static final long CACHE_OFF_HEAP_MAX_BYTES = 256L * 1024 * 1024;
+    private static final int CACHE_SLAB_SIZE = 1 << 20;
+    private static final String CACHE_SNAPSHOT_FILE = "fulldoh-cache.bin"; // null disables warm restarts
+    private static final int CACHE_SNAPSHOT_INTERVAL_SECS = 300;
+    private static final String CACHE_WARMUP_FILE = "fulldoh-warmup.txt"; // top questions resolved at startup; null disables
+    private static final int CACHE_WARMUP_MAX_QUESTIONS = 2000;
+    private static final int CACHE_WARMUP_PARALLELISM = 4;    // concurrent upstream queries while warming
+    private static final int CACHE_STATS_INTERVAL_SECS = 60;
+    private static final int CLIENT_CACHE_QUOTA_PERCENT = 25; // max share of each cache budget filled by one client subnet (100 = off)
+    private static final int CLIENT_QUOTA_PREFIX_V4 = 32;     // per device on a LAN; 24 to group clients by subnet
+    private static final int CLIENT_QUOTA_PREFIX_V6 = 64;
+    private static final int FAILURE_CACHE_MIN_SECS = 1;     // first failure of a question
+    private static final int FAILURE_CACHE_MAX_SECS = 60;    // backoff doubles up to this (RFC 9520 allows at most 300)
+    private static final int FAILURE_CACHE_MAX_ENTRIES = 10000;
+    private static final int TC_RETRY_TTL_MS = 5000;         // keep truncated answers this long for the TCP retry
+    private static final int TC_RETRY_MAX_ENTRIES = 4096;
+
+    // EDNS Client Subnet toward the upstream (sends part of each client's address to the resolver)
+    private static final boolean ECS_ENABLED = false;
+    private static final int ECS_SOURCE_PREFIX_V4 = 24;
+    private static final int ECS_SOURCE_PREFIX_V6 = 56;
+    private static final int ECS_CLIENT_CACHE_SIZE = 65536;  // client addresses whose subnet is remembered
+
+    // Admin commands (cache purge, stats) on a loopback-only TCP port; 0 disables it
+    private static final int ADMIN_PORT = 5380;
+
+    // Shared timer wheel and coarse clock (first, so everything below can use them)
+    private static final TimerWheel TIMERS = new TimerWheel();
+    private static final ExecutorService VIRTUAL_EXEC = VIRTUAL_THREADS ? virtualThreadExecutor() : null;
+    private static final ExecutorService EXEC = VIRTUAL_EXEC != null ? VIRTUAL_EXEC : Executors.newFixedThreadPool(THREADS);
+    // Per-worker output buffer and UDP packet, reused for every response. A virtual thread runs a
+    // single request, so with VIRTUAL_EXEC the buffers are borrowed from OUT_POOL instead.
+    private static final ThreadLocal<byte[]> OUT_BUF = ThreadLocal.withInitial(() -> new byte[MAX_DNS_MESSAGE]);
+    private static final ThreadLocal<DatagramPacket> OUT_PACKET = ThreadLocal.withInitial(() -> new DatagramPacket(new byte[0], 0));
+    private static final ArrayBlockingQueue<byte[]> OUT_POOL = new ArrayBlockingQueue<>(4 * THREADS);
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor();
+    private static final SlabAllocator SLABS = CACHE_OFF_HEAP ? new SlabAllocator(CACHE_OFF_HEAP_MAX_BYTES, CACHE_SLAB_SIZE) : null;
+    // One client for every DoH query: concurrent queries become streams on the same HTTP/2 connection
+    private static final Upstreams UPSTREAMS = new Upstreams(DOH_URLS);
+    private static final HttpClient DOH_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofMillis(DOH_TIMEOUT_MS))
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .build();
+    private static final ResponseCache CACHE = new ResponseCache(CACHE_MAX_BYTES, NEG_CACHE_MAX_BYTES);
+    private static final ConcurrentHashMap<CacheKey, CompletableFuture<byte[]>> REFRESHING = new ConcurrentHashMap<>();
+    private static final Semaphore PREFETCH_PERMITS = new Semaphore(PREFETCH_MAX_CONCURRENT);
+    private static final FailureCache FAILURES = new FailureCache();
+    private static final TruncatedAnswers TC_RETRIES = new TruncatedAnswers();
+    private static final SiblingPairs SIBLINGS = new SiblingPairs();
+    private static final ConcurrentHashMap<InetAddress, byte[]> ECS_CLIENTS = new ConcurrentHashMap<>();
+    private static final byte[] NO_SUBNET = new byte[0]; // ECS_CLIENTS value for clients without a subnet
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("--bench")) {
+            Benchmarks.run(args[1]);
+            return;
+        }
+        log("Starting FullDoHBinaryServer on port " + PORT);
+        if (VIRTUAL_THREADS) log(VIRTUAL_EXEC != null ? "Handling requests on virtual threads"
+                : "Virtual threads need JDK 21 - handling requests on " + THREADS + " platform threads");
+        if (CACHE_ENABLED) log("Response cache enabled (" + (CACHE_MAX_BYTES >> 20) + " MB positive / " + (NEG_CACHE_MAX_BYTES >> 20) + " MB negative, max TTL " + CACHE_MAX_TTL_SECS + "s)");
+        if (CACHE_ENABLED && CACHE_OFF_HEAP) log("Cache responses stored off-heap (budget " + (CACHE_OFF_HEAP_MAX_BYTES >> 20) + " MB in " + (CACHE_SLAB_SIZE >> 10) + " KB slabs)");
+        if (CACHE_ENABLED && CACHE_SNAPSHOT_FILE != null) {
+            loadCacheSnapshot();
+            SCHEDULER.scheduleAtFixedRate(FullDoHBinaryServer::saveCacheSnapshot,
+                    CACHE_SNAPSHOT_INTERVAL_SECS, CACHE_SNAPSHOT_INTERVAL_SECS, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(FullDoHBinaryServer::saveCacheSnapshot, "cache-snapshot"));
+        }
+        if (ECS_ENABLED) log("EDNS Client Subnet enabled (/" + ECS_SOURCE_PREFIX_V4 + " IPv4, /" + ECS_SOURCE_PREFIX_V6 + " IPv6)");
+        if (CACHE_ENABLED) {
+            SCHEDULER.scheduleAtFixedRate(FullDoHBinaryServer::logCacheStats,
+                    CACHE_STATS_INTERVAL_SECS, CACHE_STATS_INTERVAL_SECS, TimeUnit.SECONDS);
+            SCHEDULER.scheduleAtFixedRate(() -> FAILURES.expire(TIMERS.millis()),
+                    FAILURE_CACHE_MAX_SECS, FAILURE_CACHE_MAX_SECS, TimeUnit.SECONDS);
+        }
+
+        // UDP listener
+        Thread udpThread = new Thread(() -> {
+            try (DatagramSocket ds = new DatagramSocket(PORT)) {
+                ds.setReceiveBufferSize(UDP_BUF_SIZE);
+                log("UDP socket bound on " + PORT);
+                byte[] buf = new byte[UDP_BUF_SIZE];
+                while (true) {
+                    DatagramPacket p = new DatagramPacket(buf, buf.length);
+                    ds.receive(p);
+                    byte[] req = Arrays.copyOf(p.getData(), p.getLength());
+                    InetAddress clientAddr = p.getAddress();
+                    int clientPort = p.getPort();
+                    EXEC.submit(() -> handleUdpRequest(ds, clientAddr, clientPort, req));
+                }
+            } catch (BindException be) {
+                log("ERROR: Bind failed on port " + PORT + ". Are you running as admin/root? " + be.getMessage());
+            } catch (Exception e) {
+                log("UDP listener error: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }, "udp-listener");
+        udpThread.setDaemon(false);
+        udpThread.start();
+
+        // TCP listener
+        Thread tcpThread = new Thread(FullDoHBinaryServer::runTcpListener, "tcp-listener");
+        tcpThread.setDaemon(false);
+        tcpThread.start();
+
+        // Admin listener (localhost only)
+        if (ADMIN_PORT > 0) {
+            Thread adminThread = new Thread(() -> {
+                try (ServerSocket ss = new ServerSocket(ADMIN_PORT, 8, InetAddress.getLoopbackAddress())) {
+                    log("Admin socket bound on " + ss.getInetAddress().getHostAddress() + ":" + ADMIN_PORT);
+                    while (true) {
+                        try (Socket s = ss.accept()) {
+                            handleAdminConnection(s);
+                        } catch (IOException ioe) {
+                            log("Admin connection error: " + ioe.getMessage());
+                        }
+                    }
+                } catch (Exception e) {
+                    log("Admin listener error: " + e.getMessage());
+                }
+            }, "admin-listener");
+            adminThread.setDaemon(true);
+            adminThread.start();
+        }
+
+        // Cache warmup runs beside the listeners; clients asking early simply miss as before
+        if (CACHE_ENABLED && CACHE_WARMUP_FILE != null) {
+            Thread warmupThread = new Thread(FullDoHBinaryServer::warmCache, "cache-warmup");
+            warmupThread.setDaemon(true);
+            warmupThread.start();
+        }
+    }
+
+    // --------------------
+    // Request executor
+    // --------------------
+    // Executors.newVirtualThreadPerTaskExecutor() when the runtime has it (JDK 21+), else null. Looked
+    // up reflectively so the file still compiles and runs on JDK 17.
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // A MAX_DNS_MESSAGE output buffer for this request: the worker's own, or one from OUT_POOL
+    // (allocated if the pool is empty) when requests run on virtual threads
+    private static byte[] borrowOutBuf() {
+        if (VIRTUAL_EXEC == null) return OUT_BUF.get();
+        byte[] b = OUT_POOL.poll();
+        return b != null ? b : new byte[MAX_DNS_MESSAGE];
+    }
+
+    private static void returnOutBuf(byte[] b) {
+        if (VIRTUAL_EXEC != null) OUT_POOL.offer(b);
+    }
+
+    // --------------------
+    // UDP handler
+    // --------------------
+    private static void handleUdpRequest(DatagramSocket serverSocket, InetAddress clientAddr, int clientPort, byte[] request) {
+        try {
+            String qname = tryExtractDomainSafe(request);
+            int qtype = tryExtractQTypeSafe(request);
+            logf("UDP Query from %s:%d ? %s type=%d", clientAddr.getHostAddress(), clientPort, qname == null ? "<unknown>" : qname, qtype);
+
+            byte[] out = borrowOutBuf();
+            int len = answerNow(request, out, clientAddr); // raw wire-format response in out[0..len)
+            if (len != PENDING) {
+                sendUdpResponse(serverSocket, clientAddr, clientPort, request, out, len);
+                returnOutBuf(out);
+                return;
+            }
+            returnOutBuf(out);
+            // Upstream needed: this worker moves on, the reply is sent from EXEC when the answer arrives
+            resolveAsync(request, clientAddr).whenCompleteAsync((resp, t) ->
+                    sendUdpResponse(serverSocket, clientAddr, clientPort, request, resp, resp == null ? -1 : resp.length), EXEC);
+        } catch (Exception e) {
+            log("handleUdpRequest error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // Send out[0..len) to the client, SERVFAIL if len <= 0
+    private static void sendUdpResponse(DatagramSocket serverSocket, InetAddress clientAddr, int clientPort, byte[] request, byte[] out, int len) {
+        try {
+            if (len <= 0) {
+                log("DoH failed - returning SERVFAIL to " + clientAddr.getHostAddress() + ":" + clientPort);
+                byte[] serv = buildServfailWithQuestion(request);
+                DatagramPacket respPacket = new DatagramPacket(serv, serv.length, clientAddr, clientPort);
+                serverSocket.send(respPacket);
+                log("Sent SERVFAIL UDP response (" + serv.length + " bytes) to " + clientAddr.getHostAddress() + ":" + clientPort);
+                return;
+            }
+
+            // Reuse this worker's packet so a cache hit allocates nothing on the way out
+            DatagramPacket respPacket = OUT_PACKET.get();
+            respPacket.setAddress(clientAddr);
+            respPacket.setPort(clientPort);
+            // If response larger than 512 bytes, truncate and set TC bit
+            if (len > 512) {
+                // keep the full answer for the client's TCP retry, unless the cache will have it anyway
+                TC_RETRIES.remember(clientAddr, request, out, len);
+                // set TC bit in header: use mask 0x02 on header byte 2 (flags high)
+                out[2] = (byte) (out[2] | 0x02);
+                respPacket.setData(out, 0, 512);
+                serverSocket.send(respPacket);
+                log("Sent UDP TRUNCATED response to " + clientAddr.getHostAddress() + ":" + clientPort + " (512 bytes)");
+            } else {
+                respPacket.setData(out, 0, len);
+                serverSocket.send(respPacket);
+                log("Sent UDP response to " + clientAddr.getHostAddress() + ":" + clientPort + " (" + len + " bytes)");
+            }
+
+        } catch (Exception e) {
+            log("handleUdpRequest error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // --------------------
+    // TCP handler
+    // --------------------
+    // One selector thread accepts connections and reads each length-prefixed query without
+    // blocking; only a complete query is handed to EXEC. A slow or silent client therefore never
+    // holds a worker, and EXEC only runs work that does not wait.
+    private static void runTcpListener() {
+        try (Selector selector = Selector.open(); ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(PORT));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            log("TCP socket bound on " + PORT);
+            List<TcpQuery> complete = new ArrayList<>();
+            while (true) {
+                selector.select();
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey k = it.next();
+                    it.remove();
+                    if (!k.isValid()) continue;
+                    if (k.isAcceptable()) acceptTcp(server, selector);
+                    else if (k.isReadable() && readTcp((TcpQuery) k.attachment())) {
+                        k.cancel();
+                        complete.add((TcpQuery) k.attachment());
+                    }
+                }
+                if (complete.isEmpty()) continue;
+                selector.selectNow(); // deregisters the cancelled keys so their channels can block again
+                for (TcpQuery q : complete) {
+                    try {
+                        q.ch.configureBlocking(true);
+                        Socket sock = q.ch.socket();
+                        byte[] req = q.buf.array();
+                        EXEC.submit(() -> handleTcpQuery(sock, req));
+                    } catch (IOException e) {
+                        q.close();
+                    }
+                }
+                complete.clear();
+            }
+        } catch (BindException be) {
+            log("ERROR: Bind failed on port " + PORT + ". Are you running as admin/root? " + be.getMessage());
+        } catch (Exception e) {
+            log("TCP listener error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private static void acceptTcp(ServerSocketChannel server, Selector selector) {
+        SocketChannel ch = null;
+        try {
+            ch = server.accept();
+            if (ch == null) return;
+            ch.configureBlocking(false);
+            TcpQuery q = new TcpQuery(ch);
+            // Idle clients are closed by the timer wheel instead of a per-socket read timeout
+            q.idle = TIMERS.schedule(TCP_IDLE_TIMEOUT_MS, () -> {
+                log("Closing idle TCP connection from " + q.ch.socket().getInetAddress().getHostAddress());
+                q.close();
+            });
+            ch.register(selector, SelectionKey.OP_READ, q);
+        } catch (IOException e) {
+            log("TCP accept error: " + e.getMessage());
+            if (ch != null) {
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    // Read what has arrived of q's query; true once it is complete. Closes the connection on EOF,
+    // a bad length or an error.
+    private static boolean readTcp(TcpQuery q) {
+        try {
+            if (q.ch.read(q.buf) < 0) {
+                q.close();
+                return false;
+            }
+            if (q.buf.hasRemaining()) return false;
+            if (q.lengthRead) {
+                q.idle.cancel();
+                return true;
+            }
+            // 2-byte length prefix read: now the query itself
+            int len = q.buf.getShort(0) & 0xFFFF;
+            if (len == 0) {
+                q.close();
+                return false;
+            }
+            q.buf = ByteBuffer.allocate(len);
+            q.lengthRead = true;
+            return readTcp(q);
+        } catch (IOException e) {
+            log("TCP connection error: " + e.getMessage());
+            q.close();
+            return false;
+        }
+    }
+
+    // A TCP connection whose query is still being read
+    private static final class TcpQuery {
+        final SocketChannel ch;
+        ByteBuffer buf = ByteBuffer.allocate(2); // the length prefix, then the query
+        boolean lengthRead;
+        TimerWheel.Timer idle;
+
+        TcpQuery(SocketChannel ch) { this.ch = ch; }
+
+        void close() {
+            if (idle != null) idle.cancel();
+            try { ch.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Answer a complete TCP query on sock (a blocking socket by now) and close the connection
+    private static void handleTcpQuery(Socket sock, byte[] req) {
+        boolean pending = false;
+        try {
+            String qname = tryExtractDomainSafe(req);
+            int qtype = tryExtractQTypeSafe(req);
+            logf("TCP Query from %s:%d ? %s type=%d", sock.getInetAddress().getHostAddress(), sock.getPort(), qname == null ? "<unknown>" : qname, qtype);
+
+            byte[] resp = borrowOutBuf();
+            int respLen = TC_RETRIES.take(sock.getInetAddress(), req, resp);
+            if (respLen > 0) log("TCP retry after truncation answered from memory for " + sock.getInetAddress().getHostAddress());
+            else respLen = answerNow(req, resp, sock.getInetAddress());
+            if (respLen != PENDING) {
+                sendTcpResponse(sock, req, resp, respLen);
+                returnOutBuf(resp);
+                return;
+            }
+            returnOutBuf(resp);
+            // The connection stays open until the upstream answers; the reply is written from EXEC
+            pending = true;
+            resolveAsync(req, sock.getInetAddress()).whenCompleteAsync((r, t) ->
+                    sendTcpResponse(sock, req, r, r == null ? -1 : r.length), EXEC);
+        } catch (Exception e) {
+            log("TCP connection error: " + e.getMessage());
+            if (!(e instanceof SocketException)) e.printStackTrace();
+        } finally {
+            if (!pending) {
+                try { sock.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    // Write resp[0..respLen) with its length prefix (SERVFAIL if respLen <= 0) and close the connection
+    private static void sendTcpResponse(Socket s, byte[] req, byte[] resp, int respLen) {
+        try (Socket sock = s;
+             OutputStream out = sock.getOutputStream()) {
+            if (respLen <= 0) {
+                log("DoH failed for TCP - returning SERVFAIL to " + sock.getInetAddress().getHostAddress());
+                byte[] serv = buildServfailWithQuestion(req);
+                byte[] outLen = new byte[]{(byte) ((serv.length >> 8) & 0xFF), (byte) (serv.length & 0xFF)};
+                try {
+                    out.write(outLen);
+                    out.write(serv);
+                    out.flush();
+                    log("Sent TCP SERVFAIL to " + sock.getInetAddress().getHostAddress());
+                } catch (SocketException se) {
+                    log("Client aborted TCP connection (normal): " + se.getMessage());
+                }
+                return;
+            }
+
+            // send length prefixed full response
+            byte[] outLen = new byte[]{(byte) ((respLen >> 8) & 0xFF), (byte) (respLen & 0xFF)};
+            try {
+                out.write(outLen);
+                out.write(resp, 0, respLen);
+                out.flush();
+                log("Sent TCP response to " + sock.getInetAddress().getHostAddress() + " (" + respLen + " bytes)");
+            } catch (SocketException se) {
+                log("Client aborted TCP connection (normal): " + se.getMessage());
+            } catch (IOException ioe) {
+                log("TCP write error: " + ioe.getMessage());
+            }
+        } catch (Exception e) {
+            log("TCP connection error: " + e.getMessage());
+            if (!(e instanceof SocketException)) e.printStackTrace();
+        }
+    }
+
+    // --------------------
+    // Admin handler
+    // --------------------
+    // One command per line, one reply line each, e.g. with "nc localhost 5380":
+    //   purge name www.example.com [type]     entries for exactly this name
+    //   purge suffix corp.example.com [type]  entries for this name and every name under it
+    //   purge type AAAA                       entries of one type
+    //   stats
+    private static void handleAdminConnection(Socket sock) throws IOException {
+        sock.setSoTimeout(30_000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), "US-ASCII"));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(sock.getOutputStream(), "US-ASCII"), true);
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            if (line.equals("quit")) break;
+            String reply;
+            try {
+                reply = adminCommand(line.split("\\s+"));
+            } catch (IllegalArgumentException iae) {
+                reply = "error: " + iae.getMessage();
+            }
+            log("Admin command '" + line + "': " + reply);
+            out.println(reply);
+        }
+    }
+
+    private static String adminCommand(String[] cmd) {
+        switch (cmd[0]) {
+            case "stats":
+                return CACHE.stats() + "; upstreams: " + UPSTREAMS;
+            case "purge":
+                if (cmd.length == 3 && cmd[1].equals("type")) {
+                    return "purged " + CACHE.purge(null, false, parseQType(cmd[2])) + " entries";
+                }
+                if ((cmd.length == 3 || cmd.length == 4) && (cmd[1].equals("name") || cmd[1].equals("suffix"))) {
+                    int qtype = cmd.length == 4 ? parseQType(cmd[3]) : -1;
+                    return "purged " + CACHE.purge(cmd[2], cmd[1].equals("suffix"), qtype) + " entries";
+                }
+                throw new IllegalArgumentException("usage: purge name|suffix <domain> [type] | purge type <type>");
+            default:
+                throw new IllegalArgumentException("unknown command '" + cmd[0] + "' (purge, stats, quit)");
+        }
+    }
+
+    private static final String[] QTYPE_NAMES = {
+            "A", "1", "NS", "2", "CNAME", "5", "SOA", "6", "PTR", "12", "MX", "15", "TXT", "16",
+            "AAAA", "28", "SRV", "33", "DS", "43", "DNSKEY", "48", "SVCB", "64", "HTTPS", "65", "CAA", "257"
+    };
+
+    // Recursive (RD) query for a presentation-format name such as "www.example.com"; null if a
+    // label is empty or longer than 63 bytes
+    private static byte[] buildQuery(String name, int qtype, int qclass) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        int id = ThreadLocalRandom.current().nextInt(0x10000);
+        b.write(id >> 8); b.write(id); b.write(0x01); b.write(0); b.write(0); b.write(1);
+        b.write(0); b.write(0); b.write(0); b.write(0); b.write(0); b.write(0);
+        String trimmed = name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+        if (!trimmed.isEmpty()) {
+            for (String label : trimmed.split("\\.", -1)) {
+                if (label.isEmpty() || label.length() > 63) return null;
+                b.write(label.length());
+                b.writeBytes(label.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1));
+            }
+        }
+        b.write(0);
+        b.write(qtype >> 8); b.write(qtype); b.write(qclass >> 8); b.write(qclass);
+        return b.toByteArray();
+    }
+
+    // A type mnemonic (A, AAAA, ...) or number
+    private static int parseQType(String s) {
+        for (int i = 0; i < QTYPE_NAMES.length; i += 2) {
+            if (QTYPE_NAMES[i].equalsIgnoreCase(s)) return Integer.parseInt(QTYPE_NAMES[i + 1]);
+        }
+        try {
+            int t = Integer.parseInt(s);
+            if (t >= 0 && t <= 0xFFFF) return t;
+        } catch (NumberFormatException ignored) {}
+        throw new IllegalArgumentException("bad type '" + s + "'");
+    }
+
+    // --------------------
+    // Resolution (cache first, then DoH)
+    // --------------------
+    // Resolution runs in two steps so no thread ever waits on the upstream. answerNow serves what
+    // memory can answer on the calling thread; everything else goes through resolveAsync, whose
+    // future is completed by the HTTP client or the timer wheel once an answer (or a deadline) arrives.
+    private static final int PENDING = -2;
+
+    // Writes the cached response for the request into out (at least MAX_DNS_MESSAGE bytes) and
+    // returns its length, without allocating; PENDING if only resolveAsync can answer it.
+    private static int answerNow(byte[] request, byte[] out, InetAddress clientAddr) {
+        return answerNow(request, out, clientAddr, ECS_ENABLED);
+    }
+
+    // As above, with ECS on or off (the benchmarks check both)
+    private static int answerNow(byte[] request, byte[] out, InetAddress clientAddr, boolean ecs) {
+        CacheKey key = CACHE_ENABLED ? CacheKey.probe(request) : null;
+        // ECS: partition by the client's subnet; a client sending its own ECS option is passed through
+        int reqOpt = ecs ? findOpt(request, request.length) : -1;
+        if (key == null || (ecs && reqOpt >= 0 && findEcsOption(request, reqOpt) >= 0)) return PENDING;
+        if (ecs) key = key.probeForSubnet(clientSubnet(clientAddr));
+
+        long now = TIMERS.millis();
+        CacheEntry e = CACHE.lookup(key, now);
+        if (e == null || now >= e.expiresAt) return PENDING;
+        int len = CACHE.answerInto(e, request, out, now);
+        if (len <= 0) return PENDING;
+        if (LOG && LOG_CACHE_HITS) log("Cache hit for " + key);
+        int hits = e.hit();
+        if (hits == 1 && e.speculation != null) e.speculation.used();
+        if (hits == PREFETCH_MIN_HITS) schedulePrefetch(key, e, request);
+        return ecs ? stripEcsForClient(out, len, reqOpt >= 0) : len;
+    }
+
+    // The wire-format response for the request, or null if the upstream failed. The array belongs
+    // to the caller. Never completes exceptionally.
+    private static CompletableFuture<byte[]> resolveAsync(byte[] request, InetAddress clientAddr) {
+        CacheKey key = CACHE_ENABLED ? CacheKey.probe(request) : null;
+        int reqOpt = ECS_ENABLED ? findOpt(request, request.length) : -1;
+        if (ECS_ENABLED && reqOpt >= 0 && findEcsOption(request, reqOpt) >= 0) key = null;
+        if (key == null) return dohQueryAsync(request);
+        key = key.persistent();
+        if (ECS_ENABLED) key = key.forSubnet(clientSubnet(clientAddr));
+        if (!ECS_ENABLED) return resolveCached(key, request, clientAddr);
+
+        // Shared entries may have been stored by a client that sent an OPT record this one did not
+        boolean clientHasOpt = reqOpt >= 0;
+        return resolveCached(key, request, clientAddr).thenApply(resp -> resp == null ? null : withoutClientSubnet(resp, clientHasOpt));
+    }
+
+    private static CompletableFuture<byte[]> resolveCached(CacheKey key, byte[] request, InetAddress clientAddr) {
+        long now = TIMERS.millis();
+        CacheEntry e = CACHE.lookup(key, now);
+        if (e != null && now < e.expiresAt) {
+            byte[] resp = answerCopy(e, request, now);
+            if (resp != null) return CompletableFuture.completedFuture(resp);
+        }
+        boolean failing = FAILURES.isFailing(key, now);
+        if (e == null) {
+            // A question that just failed upstream gets SERVFAIL right away until its backoff ends
+            if (failing) {
+                log("Upstream recently failed for " + key + " - answering SERVFAIL from failure cache");
+                return CompletableFuture.completedFuture(buildServfailWithQuestion(request));
+            }
+            // The answer may already be on its way (a sibling speculation or a refresh): wait for it
+            CompletableFuture<byte[]> running = REFRESHING.get(key);
+            if (running != null) return running.thenApply(resp -> joined(key, resp, request));
+            speculateSibling(key, request, clientAddr);
+            return refresh(key, request, clientAddr).thenApply(resp -> forRequest(resp, request));
+        }
+
+        // Expired entry still inside the stale window (RFC 8767): refresh it, but do not keep the
+        // client waiting past the response deadline or answer SERVFAIL while stale data exists.
+        // While the question is in failure backoff, serve the stale data without asking upstream.
+        if (failing) return CompletableFuture.completedFuture(staleAnswer(key, e, request, null));
+        CompletableFuture<byte[]> fresh = new CompletableFuture<>();
+        TimerWheel.Timer deadline = TIMERS.schedule(CLIENT_RESPONSE_DEADLINE_MS, () -> {
+            if (fresh.complete(null)) log("DoH slower than " + CLIENT_RESPONSE_DEADLINE_MS + "ms for " + key + " - refreshing in background");
+        });
+        refresh(key, request, clientAddr).whenComplete((resp, t) -> {
+            deadline.cancel();
+            fresh.complete(resp);
+        });
+        return fresh.thenApply(resp -> {
+            if (resp != null && resp.length >= 12 && (resp[3] & 0x0F) != 2) {
+                byte[] patched = forRequest(resp, request);
+                if (patched != null) return patched;
+            }
+            return staleAnswer(key, e, request, resp);
+        });
+    }
+
+    // The stale entry's answer, or the upstream's (SERVFAIL) response if the entry is unusable
+    private static byte[] staleAnswer(CacheKey key, CacheEntry e, byte[] request, byte[] resp) {
+        byte[] stale = answerCopy(e, request, TIMERS.millis());
+        if (stale != null) {
+            log("Serving stale answer for " + key);
+            return stale;
+        }
+        return forRequest(resp, request);
+    }
+
+    // A fresh array with the cached response patched for the request (see answerInto); null if unusable
+    private static byte[] answerCopy(CacheEntry e, byte[] request, long now) {
+        byte[] out = new byte[e.length];
+        return CACHE.answerInto(e, request, out, now) > 0 ? out : null;
+    }
+
+    // A copy of an upstream response (possibly shared with other waiters) patched for the request
+    private static byte[] forRequest(byte[] resp, byte[] request) {
+        if (resp == null || resp.length == 0) return null;
+        byte[] copy = resp.clone();
+        return patchForRequest(copy, request) ? copy : null;
+    }
+
+    // A miss served from an upstream query that was already in flight for the same question
+    private static byte[] joined(CacheKey key, byte[] resp, byte[] request) {
+        CacheEntry e = CACHE.lookup(key, TIMERS.millis());
+        if (e != null && e.hit() == 1 && e.speculation != null) e.speculation.used();
+        byte[] patched = forRequest(resp, request);
+        if (patched != null && LOG) log("Answered " + key + " from an upstream query already in flight");
+        return patched;
+    }
+
+    // The query sent upstream for key: the client's query, plus an ECS option for subnet keys
+    private static byte[] upstreamQuery(CacheKey key, byte[] request) {
+        return key.subnet == null ? request : withClientSubnet(request, key.subnet);
+    }
+
+    // Copy an upstream response into the output buffer; -1 if there is none or it does not fit
+    private static int copyOut(byte[] resp, byte[] out) {
+        if (resp == null || resp.length == 0 || resp.length > out.length) return -1;
+        System.arraycopy(resp, 0, out, 0, resp.length);
+        return resp.length;
+    }
+
+    // Dual-stack clients ask A and AAAA together; on a miss for one, start the other in the
+    // background so the client's second query finds it cached or in flight. SIBLINGS stops this for
+    // domains whose clients rarely ask the sibling.
+    private static void speculateSibling(CacheKey key, byte[] request, InetAddress clientAddr) {
+        int qtype = key.qtype();
+        if (!SIBLING_PREFETCH || (qtype != 1 && qtype != 28) || key.qclass() != 1) return;
+        int qend = findQuestionEnd(request, 12);
+        if (qend < 0) return;
+        byte[] sibling = request.clone();
+        sibling[qend - 3] = (byte) (qtype == 1 ? 28 : 1);
+        CacheKey sk = CacheKey.fromQuestion(sibling);
+        if (sk == null) return;
+        if (key.subnet != null) sk = sk.forSubnet(key.subnet);
+        long now = TIMERS.millis();
+        if (CACHE.lookup(sk, now) != null || REFRESHING.containsKey(sk) || FAILURES.isFailing(sk, now)) return;
+        SiblingPairs.Domain d = SIBLINGS.admit(key, now);
+        if (d == null || !PREFETCH_PERMITS.tryAcquire()) return;
+        d.issued();
+        refresh(sk, sibling, clientAddr, d).whenComplete((r, t) -> PREFETCH_PERMITS.release());
+    }
+
+    // Once an entry is hot, arm a timer that starts counting its hits afresh one prefetch window
+    // before the prefetch window, then another for the prefetch window itself, so that prefetch
+    // sees only recent hits; evicting the entry cancels them
+    private static void schedulePrefetch(CacheKey key, CacheEntry e, byte[] request) {
+        CacheKey k = key.persistent();
+        byte[] req = request.clone();
+        e.armPrefetch(TIMERS.scheduleAt(e.hotWindowAt(), () -> {
+            e.startHotWindow();
+            e.armPrefetch(TIMERS.scheduleAt(e.prefetchAt(), () -> prefetch(k, e, req)));
+        }));
+    }
+
+    // Re-query a hot entry before it expires so its clients never see a miss. At most
+    // PREFETCH_MAX_CONCURRENT prefetches run at once; extra candidates are skipped.
+    private static void prefetch(CacheKey key, CacheEntry e, byte[] request) {
+        if (e.recentHits() < PREFETCH_MIN_HITS) return; // went cold; let it expire
+        if (e.isReleased() || REFRESHING.containsKey(key) || !e.claimPrefetch()) return;
+        if (!PREFETCH_PERMITS.tryAcquire()) {
+            e.unclaimPrefetch();
+            return;
+        }
+        log("Prefetching " + key + " (" + e.recentHits() + " recent hits)");
+        refresh(key.persistent(), request, null).whenComplete((r, t) -> PREFETCH_PERMITS.release());
+    }
+
+    // Start (or join) an upstream query for key; the result is stored in the cache, charged to
+    // clientAddr's quota (null for prefetches). The future completes with the raw response, shared
+    // by everyone waiting on it, or null if the upstream failed.
+    private static CompletableFuture<byte[]> refresh(CacheKey key, byte[] request, InetAddress clientAddr) {
+        return refresh(key, request, clientAddr, null);
+    }
+
+    // As above; a sibling speculation marks the entry it stores so the first hit credits its domain
+    private static CompletableFuture<byte[]> refresh(CacheKey key, byte[] request, InetAddress clientAddr, SiblingPairs.Domain speculation) {
+        CompletableFuture<byte[]> f = new CompletableFuture<>();
+        CompletableFuture<byte[]> running = REFRESHING.putIfAbsent(key, f);
+        if (running != null) return running;
+        dohQueryAsync(upstreamQuery(key, request)).whenComplete((dohResp, t) -> {
+            byte[] resp = dohResp;
+            try {
+                recordUpstreamResult(key, dohResp);
+                if (dohResp != null && dohResp.length > 0) {
+                    // A subnet key is only used if the upstream scoped its answer (ECS scope prefix > 0);
+                    // otherwise the answer is shared by every client. Either way the ECS data we added
+                    // is removed before the answer is stored or handed out.
+                    CacheKey target = key;
+                    if (key.subnet != null) {
+                        if (ecsScope(dohResp) <= 0) target = key.global;
+                        resp = withoutClientSubnet(dohResp, findOpt(request, request.length) >= 0);
+                    }
+                    CacheEntry e = CACHE.put(target, resp, clientAddr);
+                    if (e != null) e.speculation = speculation;
+                }
+            } catch (Exception ex) {
+                log("Cache refresh error for " + key + ": " + ex.getMessage());
+            } finally {
+                REFRESHING.remove(key, f);
+                f.complete(resp);
+            }
+        });
+        return f;
+    }
+
+    // No response or SERVFAIL starts (or extends) the question's failure backoff; anything else ends it
+    private static void recordUpstreamResult(CacheKey key, byte[] resp) {
+        if (resp == null || resp.length < 12 || (resp[3] & 0x0F) == 2) {
+            int secs = FAILURES.recordFailure(key, TIMERS.millis());
+            if (secs > 0) log("Upstream failure for " + key + " - caching it for " + secs + "s");
+        } else {
+            FAILURES.recordSuccess(key);
+        }
+    }
+
+    // --------------------
+    // DoH binary exchange (POST application/dns-message)
+    // --------------------
+    // Send the query to the resolver UPSTREAMS currently rates best. The future completes with the
+    // raw response, or with null if the upstream failed or missed the DOH_TIMEOUT_MS deadline (never
+    // exceptionally).
+    //
+    // Hedging: if no answer has come after the resolver's p95 latency, and the hedge budget allows,
+    // the same query goes to the next best resolver as well. The first answer wins and the other
+    // request is cancelled. A query that simply fails is not retried here.
+    private static CompletableFuture<byte[]> dohQueryAsync(byte[] query) {
+        Upstream primary = UPSTREAMS.pick();
+        CompletableFuture<byte[]> first = dohQueryAsync(primary, query, false);
+        UPSTREAMS.earnHedge();
+        int delay = HEDGE_ENABLED ? primary.hedgeDelayMs() : 0;
+        if (delay <= 0 || first.isDone()) return first;
+
+        CompletableFuture<byte[]> answer = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<byte[]>> backup = new AtomicReference<>();
+        TimerWheel.Timer hedge = TIMERS.schedule(delay, () -> {
+            if (first.isDone() || !UPSTREAMS.spendHedge()) return;
+            Upstream other = UPSTREAMS.alternative(primary);
+            if (LOG) log("No answer from " + primary.url + " after " + delay + "ms - hedging to " + other.url);
+            CompletableFuture<byte[]> second = dohQueryAsync(other, query, true);
+            backup.set(second);
+            if (answer.isDone()) second.cancel(true);
+            second.whenComplete((r, t) -> {
+                if (r != null) {
+                    if (answer.complete(r)) {
+                        UPSTREAMS.hedgeWon();
+                        first.cancel(true);
+                    }
+                } else if (first.isDone()) {
+                    answer.complete(null);
+                }
+            });
+        });
+        first.whenComplete((r, t) -> {
+            hedge.cancel();
+            CompletableFuture<byte[]> second = backup.get();
+            if (r != null) {
+                if (answer.complete(r) && second != null) second.cancel(true);
+            } else if (second == null || second.isDone()) {
+                answer.complete(second == null || second.isCancelled() ? null : second.getNow(null));
+            }
+        });
+        return answer;
+    }
+
+    // POST the query to one resolver on the shared HTTP/2 client, feeding its latency or failure
+    // into the resolver's averages. Cancelling the returned future aborts the exchange. hedge marks
+    // the second request of a hedged query.
+    private static CompletableFuture<byte[]> dohQueryAsync(Upstream upstream, byte[] query, boolean hedge) {
+        HttpRequest req = HttpRequest.newBuilder(upstream.uri)
+                .header("Content-Type", "application/dns-message")
+                .header("Accept", "application/dns-message")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(query))
+                .build();
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<byte[]>> exchange;
+        try {
+            exchange = DOH_CLIENT.sendAsync(req, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (Exception e) {
+            log("DoH error -> " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            upstream.record(DOH_TIMEOUT_MS, false);
+            return CompletableFuture.completedFuture(null);
+        }
+        // One deadline for the whole exchange, enforced by the timer wheel; cancelling resets the stream
+        TimerWheel.Timer deadline = TIMERS.schedule(DOH_TIMEOUT_MS, () -> {
+            if (exchange.isDone()) return;
+            log("DoH deadline of " + DOH_TIMEOUT_MS + "ms passed - aborting request to " + upstream.url);
+            upstream.record(DOH_TIMEOUT_MS, false);
+            exchange.cancel(true);
+        });
+        CompletableFuture<byte[]> result = exchange.handle((resp, t) -> {
+            deadline.cancel();
+            double millis = (System.nanoTime() - start) / 1e6;
+            if (t != null) {
+                if (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+                if (t instanceof CancellationException) return null; // deadline (recorded above) or hedge loser
+                if (t instanceof HttpTimeoutException) log("DoH timeout to " + upstream.url);
+                else log("DoH error -> " + t.getClass().getSimpleName() + ": " + t.getMessage());
+                upstream.record(Math.max(millis, DOH_TIMEOUT_MS), false);
+                return null;
+            }
+            if (resp.statusCode() != 200) {
+                log("DoH non-200: " + resp.statusCode() + " from " + upstream.url);
+                byte[] err = resp.body();
+                if (err != null && err.length > 0) log("DoH error body: " + new String(err, 0, Math.min(err.length, 512), java.nio.charset.StandardCharsets.ISO_8859_1));
+                upstream.record(millis, false);
+                return null;
+            }
+            upstream.record(millis, true);
+            return resp.body();
+        });
+        // A cancelled primary had waited at least the hedge delay, so its time so far is a lower bound
+        // worth keeping. A cancelled hedge only started shortly before the primary answered: its
+        // near-zero time would make that resolver look fast, so it records nothing.
+        result.whenComplete((r, t) -> {
+            if (!result.isCancelled()) return;
+            deadline.cancel();
+            exchange.cancel(true);
+            if (!hedge) upstream.record((System.nanoTime() - start) / 1e6, true);
+        });
+        return result;
+    }
+
+    // The configured DoH resolvers. Each query goes to the one with the lowest expected cost: its
+    // latency average plus its error rate times DOH_TIMEOUT_MS (what a failure costs the client).
+    // UPSTREAM_EXPLORE_PERCENT of queries go to a random other resolver instead, so a resolver that
+    // was slow earlier gets the chance to show it has recovered. Resolvers with no samples yet
+    // score 0 and are tried first.
+    //
+    // Hedges are paid from a credit balance (in hundredths of a request): every query earns
+    // HEDGE_BUDGET_PERCENT, every hedge costs 100, so hedges stay under that share of the queries.
+    private static final class Upstreams {
+        private static final long MAX_HEDGE_CREDIT = 100 * 20; // at most a burst of 20 hedges
+
+        private final Upstream[] all;
+        private final AtomicLong hedgeCredit = new AtomicLong();
+        private final AtomicLong hedges = new AtomicLong();
+        private final AtomicLong hedgeWins = new AtomicLong();
+
+        Upstreams(String[] urls) {
+            all = new Upstream[urls.length];
+            for (int i = 0; i < urls.length; i++) all[i] = new Upstream(urls[i]);
+        }
+
+        Upstream pick() {
+            Upstream best = all[0];
+            for (Upstream u : all) {
+                if (u.cost() < best.cost()) best = u;
+            }
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            if (all.length > 1 && rnd.nextInt(100) < UPSTREAM_EXPLORE_PERCENT) {
+                Upstream other = all[rnd.nextInt(all.length - 1)];
+                return other == best ? all[all.length - 1] : other;
+            }
+            return best;
+        }
+
+        // The best resolver other than u (u itself when it is the only one: a new stream still
+        // dodges a slow server-side lookup)
+        Upstream alternative(Upstream u) {
+            Upstream best = null;
+            for (Upstream o : all) {
+                if (o != u && (best == null || o.cost() < best.cost())) best = o;
+            }
+            return best != null ? best : u;
+        }
+
+        void earnHedge() {
+            if (hedgeCredit.get() < MAX_HEDGE_CREDIT) hedgeCredit.addAndGet(HEDGE_BUDGET_PERCENT);
+        }
+
+        boolean spendHedge() {
+            while (true) {
+                long c = hedgeCredit.get();
+                if (c < 100) return false;
+                if (hedgeCredit.compareAndSet(c, c - 100)) {
+                    hedges.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+
+        void hedgeWon() { hedgeWins.incrementAndGet(); }
+
+        @Override public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Upstream u : all) sb.append(sb.length() == 0 ? "" : ", ").append(u);
+            return sb.append("; ").append(hedges.get()).append(" hedged (").append(hedgeWins.get()).append(" won)").toString();
+        }
+    }
+
+    private static final class Upstream {
+        private static final int RECENT = 128;   // latencies kept for the p95 (power of two)
+        private static final int P95_EVERY = 32; // recompute the p95 after this many samples
+
+        final String url;
+        final URI uri;
+        private double latencyMs;  // EWMA of response time, failures counted as DOH_TIMEOUT_MS
+        private double errorRate;  // EWMA of failures (timeouts, transport errors, non-200)
+        private long samples;
+        private final int[] recent = new int[RECENT]; // latest answered latencies, ms
+        private int recorded;
+        private volatile int p95Ms;                   // 0 until RECENT latencies were seen
+
+        Upstream(String url) {
+            this.url = url;
+            this.uri = URI.create(url);
+        }
+
+        synchronized void record(double millis, boolean ok) {
+            // plain mean over the first samples, so a slow first exchange (TLS setup) fades quickly
+            double w = Math.max(1.0 / (samples + 1), UPSTREAM_EWMA_WEIGHT);
+            latencyMs += w * (millis - latencyMs);
+            errorRate += w * ((ok ? 0 : 1) - errorRate);
+            samples++;
+            if (!ok) return;
+            recent[recorded++ & (RECENT - 1)] = (int) Math.ceil(millis);
+            if (recorded >= RECENT && recorded % P95_EVERY == 0) {
+                int[] sorted = recent.clone();
+                Arrays.sort(sorted);
+                p95Ms = sorted[RECENT * 95 / 100];
+            }
+        }
+
+        // How long to wait for this resolver before hedging; 0 while its p95 is unknown
+        int hedgeDelayMs() {
+            int p95 = p95Ms;
+            return p95 == 0 ? 0 : Math.max(p95, HEDGE_MIN_DELAY_MS);
+        }
+
+        synchronized double cost() { return latencyMs + errorRate * DOH_TIMEOUT_MS; }
+
+        @Override public synchronized String toString() {
+            return String.format("%s %.1fms p95 %dms %.1f%% errors (%d queries)", uri.getAuthority(), latencyMs, p95Ms, errorRate * 100, samples);
+        }
+    }
+
+    // Build a SERVFAIL response that includes the original question bytes (so clients accept it).
+    // If we cannot parse question, return a minimal 12-byte header with SERVFAIL (less ideal).
+    private static byte[] buildServfailWithQuestion(byte[] request) {
+        try {
+            if (request == null || request.length < 12) {
+                // minimal header: copy what we can
+                byte[] h = new byte[12];
+                Arrays.fill(h, (byte)0);
+                return h;
+            }
+            // copy ID and original header
+            byte[] header = Arrays.copyOfRange(request, 0, 12);
+            // set QR=1 and copy RD bit from original header[2]; set RCODE=2 (SERVFAIL) and RA=1
+            header[2] = (byte) (0x80 | (request[2] & 0x01)); // QR=1 and copy RD
+            header[3] = (byte) 0x82; // RA=1 and RCODE=2 (SERVFAIL)
+            // set ancount=0
+            header[6] = 0; header[7] = 0;
+            // preserve qdcount from original request (already in header[4..5])
+            // find end of question section
+            int qend = findQuestionEnd(request, 12);
+            if (qend <= 12) qend = Math.min(request.length, 12 + 5); // fallback
+            byte[] questionBytes = Arrays.copyOfRange(request, 12, Math.min(qend, request.length));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(header);
+            out.write(questionBytes);
+            // No answers
+            return out.toByteArray();
+        } catch (Exception e) {
+            // fallback minimal servfail header
+            byte[] h = new byte[12];
+            Arrays.fill(h, (byte)0);
+            return h;
+        }
+    }
+
+    // Find end position of question section (returns index after QTYPE+QCLASS)
+    private static int findQuestionEnd(byte[] data, int startPos) {
+        int pos = startPos;
+        try {
+            int max = data.length;
+            // skip QNAME
+            while (pos < max && data[pos] != 0) {
+                int len = data[pos] & 0xFF;
+                if (len == 0) { pos++; break; }
+                pos += 1 + len;
+            }
+            if (pos < max && data[pos] == 0) pos++; // skip terminating 0
+            // skip QTYPE + QCLASS (4 bytes)
+            if (pos + 4 <= max) pos += 4;
+            return pos;
+        } catch (Exception e) {
+            return startPos;
+        }
+    }
+
+    // Try to extract question domain string for logging (best-effort)
+    private static String tryExtractDomainSafe(byte[] req) {
+        try {
+            if (req == null || req.length < 13) return null;
+            int pos = 12;
+            StringBuilder sb = new StringBuilder();
+            int max = req.length;
+            while (pos < max) {
+                int len = req[pos++] & 0xFF;
+                if (len == 0) break;
+                if (len > 63 || pos + len > max) break;
+                sb.append(new String(req, pos, len));
+                pos += len;
+                sb.append('.');
+            }
+            if (sb.length() == 0) return "";
+            if (sb.charAt(sb.length()-1) == '.') sb.setLength(sb.length()-1);
+            return sb.toString();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Try to extract qtype (best-effort)
+    private static int tryExtractQTypeSafe(byte[] req) {
+        try {
+            if (req == null || req.length < 16) return -1;
+            int pos = findQuestionEnd(req, 12);
+            // QTYPE is two bytes before QCLASS; but easier: go to end of qname then read two bytes QTYPE at pos-4
+            // We'll reparse:
+            pos = 12;
+            int max = req.length;
+            while (pos < max) {
+                int len = req[pos++] & 0xFF;
+                if (len == 0) break;
+                pos += len;
+            }
+            if (pos + 1 >= max) return -1;
+            int qtype = ((req[pos] & 0xFF) << 8) | (req[pos+1] & 0xFF);
+            return qtype;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    // --------------------
+    // Wire-format helpers
+    // --------------------
+    private static int readU16(byte[] m, int pos) {
+        return ((m[pos] & 0xFF) << 8) | (m[pos + 1] & 0xFF);
+    }
+
+    private static long readU32(byte[] m, int pos) {
+        return ((long) readU16(m, pos) << 16) | readU16(m, pos + 2);
+    }
+
+    private static void writeU32(byte[] m, int pos, long v) {
+        m[pos] = (byte) (v >>> 24); m[pos + 1] = (byte) (v >>> 16);
+        m[pos + 2] = (byte) (v >>> 8); m[pos + 3] = (byte) v;
+    }
+
+    // Skip a (possibly compressed) name starting at pos; returns index after it, or -1 if malformed
+    private static int skipName(byte[] m, int pos) {
+        while (pos < m.length) {
+            int len = m[pos] & 0xFF;
+            if (len == 0) return pos + 1;
+            if ((len & 0xC0) == 0xC0) return pos + 2 <= m.length ? pos + 2 : -1;
+            if ((len & 0xC0) != 0) return -1;
+            pos += 1 + len;
+        }
+        return -1;
+    }
+
+    // Offsets of the TTL field of every resource record after the question section (OPT excluded,
+    // its TTL field carries EDNS flags). Returns null if the message is malformed.
+    private static int[] ttlOffsets(byte[] m) {
+        if (m.length < 12) return null;
+        int qd = readU16(m, 4);
+        int rrs = readU16(m, 6) + readU16(m, 8) + readU16(m, 10);
+        int pos = 12;
+        for (int i = 0; i < qd; i++) {
+            pos = skipName(m, pos);
+            if (pos < 0 || pos + 4 > m.length) return null;
+            pos += 4;
+        }
+        int[] offsets = new int[rrs];
+        int n = 0;
+        for (int i = 0; i < rrs; i++) {
+            pos = skipName(m, pos);
+            if (pos < 0 || pos + 10 > m.length) return null;
+            if (readU16(m, pos) != 41) offsets[n++] = pos + 4;
+            pos += 10 + readU16(m, pos + 8);
+            if (pos > m.length) return null;
+        }
+        return n == rrs ? offsets : Arrays.copyOf(offsets, n);
+    }
+
+    // Minimum RR TTL of the message (RFC 2181: values with the MSB set count as zero). Returns
+    // Long.MAX_VALUE if there are no RRs, or -1 if the message is malformed.
+    private static long minTtl(byte[] m) {
+        int[] offsets = ttlOffsets(m);
+        if (offsets == null) return -1;
+        long min = Long.MAX_VALUE;
+        for (int off : offsets) {
+            long ttl = readU32(m, off);
+            min = Math.min(min, ttl > Integer.MAX_VALUE ? 0 : ttl);
+        }
+        return min;
+    }
+
+    // --------------------
+    // EDNS Client Subnet (RFC 7871)
+    // --------------------
+    // ECS option data for the client's subnet: family, source prefix, scope prefix 0 and the address
+    // truncated to the source prefix. Null for loopback / private clients, which must not be sent.
+    private static byte[] ecsSubnet(InetAddress addr) {
+        if (addr == null || addr.isLoopbackAddress() || addr.isSiteLocalAddress() || addr.isLinkLocalAddress()
+                || addr.isAnyLocalAddress()) return null;
+        byte[] a = addr.getAddress();
+        boolean v4 = a.length == 4;
+        int prefix = v4 ? ECS_SOURCE_PREFIX_V4 : ECS_SOURCE_PREFIX_V6;
+        if (!v4 && (a[0] & 0xFE) == 0xFC) return null; // IPv6 unique local
+        int bytes = (prefix + 7) / 8;
+        byte[] data = new byte[4 + bytes];
+        data[1] = (byte) (v4 ? 1 : 2);
+        data[2] = (byte) prefix;
+        System.arraycopy(a, 0, data, 4, bytes);
+        if (prefix % 8 != 0) data[3 + bytes] &= (byte) (0xFF << (8 - prefix % 8));
+        return data;
+    }
+
+    // ecsSubnet(addr), remembered per client address so that a cache hit finds its subnet without
+    // allocating. The map is simply cleared once it holds ECS_CLIENT_CACHE_SIZE clients.
+    private static byte[] clientSubnet(InetAddress addr) {
+        if (addr == null) return null;
+        byte[] subnet = ECS_CLIENTS.get(addr);
+        if (subnet == null) {
+            if (ECS_CLIENTS.size() >= ECS_CLIENT_CACHE_SIZE) ECS_CLIENTS.clear();
+            subnet = ecsSubnet(addr);
+            ECS_CLIENTS.put(addr, subnet == null ? NO_SUBNET : subnet);
+        }
+        return subnet == NO_SUBNET ? null : subnet;
+    }
+
+    private static String ecsSubnetToString(byte[] subnet) {
+        try {
+            byte[] a = new byte[subnet[1] == 1 ? 4 : 16];
+            System.arraycopy(subnet, 4, a, 0, subnet.length - 4);
+            return InetAddress.getByAddress(a).getHostAddress() + "/" + (subnet[2] & 0xFF);
+        } catch (UnknownHostException e) {
+            return "?";
+        }
+    }
+
+    // Offset of the OPT pseudo-RR (its root owner name) in the additional section, or -1
+    private static int findOpt(byte[] m, int len) {
+        if (len < 12) return -1;
+        int qd = readU16(m, 4), an = readU16(m, 6), ns = readU16(m, 8), ar = readU16(m, 10);
+        int pos = 12;
+        for (int i = 0; i < qd; i++) {
+            pos = skipName(m, pos);
+            if (pos < 0 || pos + 4 > len) return -1;
+            pos += 4;
+        }
+        for (int i = 0; i < an + ns + ar; i++) {
+            int start = pos;
+            pos = skipName(m, pos);
+            if (pos < 0 || pos + 10 > len) return -1;
+            if (i >= an + ns && readU16(m, pos) == 41 && m[start] == 0) return start;
+            pos += 10 + readU16(m, pos + 8);
+        }
+        return -1;
+    }
+
+    // Offset of the OPT record if it is the last record of the message, otherwise -1
+    private static int findTrailingOpt(byte[] m, int len) {
+        int opt = findOpt(m, len);
+        return opt >= 0 && opt + 11 + readU16(m, opt + 9) == len ? opt : -1;
+    }
+
+    // Offset of the ECS option (code 8) inside the OPT record at opt, or -1
+    private static int findEcsOption(byte[] m, int opt) {
+        int p = opt + 11, end = p + readU16(m, opt + 9);
+        while (p + 4 <= end && end <= m.length) {
+            if (readU16(m, p) == 8) return p;
+            p += 4 + readU16(m, p + 2);
+        }
+        return -1;
+    }
+
+    // ECS scope prefix of a response, or -1 if it carries no ECS option
+    private static int ecsScope(byte[] m) {
+        int opt = findOpt(m, m.length);
+        int ecs = opt < 0 ? -1 : findEcsOption(m, opt);
+        return ecs < 0 || ecs + 8 > m.length ? -1 : m[ecs + 7] & 0xFF;
+    }
+
+    // Copy of the query carrying an ECS option for subnet. Adds an OPT record when the query has none;
+    // if the query's OPT is not its last record it is sent unchanged.
+    private static byte[] withClientSubnet(byte[] q, byte[] subnet) {
+        int opt = findOpt(q, q.length);
+        if (opt >= 0 && findTrailingOpt(q, q.length) != opt) return q;
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(q.length + 15 + subnet.length);
+        bout.write(q, 0, q.length);
+        if (opt < 0) {
+            // root name, TYPE=OPT, CLASS=UDP payload size 1232, TTL (ext. RCODE/flags) 0, RDLENGTH 0
+            bout.writeBytes(new byte[]{0, 0, 41, 0x04, (byte) 0xD0, 0, 0, 0, 0, 0, 0});
+        }
+        bout.write(0); bout.write(8);                  // OPTION-CODE = ECS
+        bout.write(subnet.length >> 8); bout.write(subnet.length);
+        bout.write(subnet, 0, subnet.length);
+        byte[] out = bout.toByteArray();
+        if (opt < 0) {
+            opt = q.length;
+            int ar = readU16(out, 10) + 1;
+            out[10] = (byte) (ar >> 8); out[11] = (byte) ar;
+        }
+        int rdlen = readU16(out, opt + 9) + 4 + subnet.length;
+        out[opt + 9] = (byte) (rdlen >> 8); out[opt + 10] = (byte) rdlen;
+        return out;
+    }
+
+    // Remove the EDNS data we added for the upstream from an answer (in place, RFC 7871 7.2.1): the
+    // whole OPT record if the client sent none, otherwise just the ECS option. Returns the new length.
+    // Harmless on answers without them, so it runs on every answer while ECS is enabled.
+    private static int stripEcsForClient(byte[] m, int len, boolean clientHasOpt) {
+        if (len <= 0) return len;
+        int opt = findTrailingOpt(m, len);
+        if (opt < 0) return len;
+        if (!clientHasOpt) {
+            int ar = readU16(m, 10) - 1;
+            m[10] = (byte) (ar >> 8); m[11] = (byte) ar;
+            return opt;
+        }
+        int ecs = findEcsOption(m, opt);
+        if (ecs < 0) return len;
+        int optionLen = 4 + readU16(m, ecs + 2);
+        System.arraycopy(m, ecs + optionLen, m, ecs, len - ecs - optionLen);
+        int rdlen = readU16(m, opt + 9) - optionLen;
+        m[opt + 9] = (byte) (rdlen >> 8); m[opt + 10] = (byte) rdlen;
+        return len - optionLen;
+    }
+
+    // The answer without the EDNS data the client did not send (see stripEcsForClient). resp is
+    // stripped in place; a trimmed copy is returned if that made it shorter.
+    private static byte[] withoutClientSubnet(byte[] resp, boolean clientHasOpt) {
+        int len = stripEcsForClient(resp, resp.length, clientHasOpt);
+        return len == resp.length ? resp : Arrays.copyOf(resp, len);
+    }
+
+    // --------------------
+    // Response cache
+    // --------------------
+    // Cache key: the question section bytes (wire-format qname, QTYPE, QCLASS) compared with ASCII
+    // case folding on the name, the query's CD and DO bits (a CD=1 answer may be bogus and a DO=0
+    // one lacks signatures, so neither may answer the other kind of query; RFC 4035 4.7), plus the
+    // client subnet when the answer was scoped to it by EDNS Client Subnet. The hash is SipHash-2-4 over the folded bytes with a random per-process key, so
+    // computing it takes a few dozen nanoseconds, needs no String, and cannot be hash-flooded.
+    private static final class CacheKey {
+        private static final long K0, K1;
+        static {
+            SecureRandom rnd = new SecureRandom();
+            K0 = rnd.nextLong();
+            K1 = rnd.nextLong();
+        }
+        private static final ThreadLocal<CacheKey> PROBES = ThreadLocal.withInitial(CacheKey::new);
+        private static final ThreadLocal<CacheKey> SUBNET_PROBES = ThreadLocal.withInitial(CacheKey::new);
+        static final int CD = 1, DO = 2; // dnssec bits
+
+        private byte[] buf;      // the question lives in buf[off, off + len); name bytes are buf[off, off + len - 4)
+        private int off;
+        private int len;
+        private long hash;
+        private boolean owned;   // buf is a private lowercased copy (never true for probes)
+        int dnssec;              // CD and DO bits of the query
+        byte[] subnet;           // ECS option data (family, source prefix, scope 0, address) or null
+        CacheKey global;         // the same question without a subnet (this, for global keys)
+
+        private CacheKey() {}
+
+        // Thread-local key for the question of a standard query (QR=0, OPCODE=QUERY, one question),
+        // built without allocating. It aliases req and is reused by the next call on this thread, so
+        // anything that outlives the lookup must use persistent(). Null if it should not be cached.
+        static CacheKey probe(byte[] req) {
+            if (req == null || req.length < 17) return null;
+            if ((req[2] & 0x80) != 0 || (req[2] & 0x78) != 0) return null;
+            CacheKey k = PROBES.get();
+            return k.parse(req) ? k : null;
+        }
+
+        // Standalone key for the question of any message (query or response); null if unusable.
+        // The dnssec bits are taken from m, which for a response are whatever the upstream echoed.
+        static CacheKey fromQuestion(byte[] m) {
+            CacheKey k = new CacheKey();
+            return k.parse(m) ? k.persistent() : null;
+        }
+
+        // Key for a presentation-format name such as "www.example.com"
+        static CacheKey of(String name, int qtype, int qclass) {
+            return fromQuestion(buildQuery(name, qtype, qclass));
+        }
+
+        // Point this key at the single question of m; false if the message has none or it is malformed
+        private boolean parse(byte[] m) {
+            if (m == null || m.length < 17 || readU16(m, 4) != 1) return false;
+            int pos = 12;
+            while (true) {
+                if (pos >= m.length) return false;
+                int l = m[pos++] & 0xFF;
+                if (l == 0) break;
+                if (l > 63 || pos + l > m.length) return false;
+                pos += l;
+            }
+            if (pos + 4 > m.length || pos - 12 > 255) return false;
+            buf = m;
+            off = 12;
+            len = pos + 4 - 12;
+            int opt = findOpt(m, m.length);
+            dnssec = ((m[3] & 0x10) != 0 ? CD : 0) | (opt >= 0 && opt + 8 < m.length && (m[opt + 7] & 0x80) != 0 ? DO : 0);
+            hash = sipHash(buf, off, len, len - 4) + dnssec * 0x9E3779B97F4A7C15L;
+            owned = false;
+            subnet = null;
+            global = this;
+            return true;
+        }
+
+        // This key if it owns its bytes, otherwise an immutable copy that can be stored
+        CacheKey persistent() {
+            if (owned) return this;
+            CacheKey k = new CacheKey();
+            k.buf = new byte[len];
+            for (int i = 0; i < len; i++) k.buf[i] = i < len - 4 ? fold(buf[off + i]) : buf[off + i];
+            k.len = len;
+            k.hash = hash;
+            k.owned = true;
+            k.dnssec = dnssec;
+            k.global = k;
+            if (subnet != null) {
+                k.subnet = subnet;
+                k.global = global.persistent();
+            }
+            return k;
+        }
+
+        // Thread-local key for this global key partitioned to subnet (this key if subnet is null),
+        // built without allocating. Like a probe it aliases this key and is reused by the next call
+        // on the thread, so anything that outlives the lookup must use persistent().
+        CacheKey probeForSubnet(byte[] subnet) {
+            if (subnet == null) return this;
+            CacheKey k = SUBNET_PROBES.get();
+            k.buf = buf;
+            k.off = off;
+            k.len = len;
+            k.hash = hash * 31 + sipHash(subnet, 0, subnet.length, 0);
+            k.owned = false;
+            k.dnssec = dnssec;
+            k.subnet = subnet;
+            k.global = this;
+            return k;
+        }
+
+        // The key for this question partitioned to a client subnet
+        CacheKey forSubnet(byte[] subnet) {
+            if (subnet == null) return global;
+            CacheKey g = global.persistent();
+            CacheKey k = new CacheKey();
+            k.buf = g.buf;
+            k.len = g.len;
+            k.hash = g.hash * 31 + sipHash(subnet, 0, subnet.length, 0);
+            k.owned = true;
+            k.dnssec = g.dnssec;
+            k.subnet = subnet;
+            k.global = g;
+            return k;
+        }
+
+        // The global key for this question with the given dnssec bits
+        CacheKey withDnssec(int bits) {
+            CacheKey g = global.persistent();
+            if (g.dnssec == bits) return g;
+            CacheKey k = new CacheKey();
+            k.buf = g.buf;
+            k.len = g.len;
+            k.hash = g.hash + (bits - g.dnssec) * 0x9E3779B97F4A7C15L;
+            k.owned = true;
+            k.dnssec = bits;
+            k.global = k;
+            return k;
+        }
+
+        int qtype() { return readU16(buf, off + len - 4); }
+        int qclass() { return readU16(buf, off + len - 2); }
+        int length() { return len; }
+
+        int labelCount() {
+            int count = 0;
+            for (int p = off; (buf[p] & 0xFF) != 0; p += (buf[p] & 0xFF) + 1) count++;
+            return count;
+        }
+
+        // Lowercased labels from the leftmost one to the TLD (empty for the root)
+        String[] labels() {
+            int count = labelCount();
+            String[] labels = new String[count];
+            int p = off;
+            for (int i = 0; i < count; i++) {
+                int l = buf[p++] & 0xFF;
+                char[] c = new char[l];
+                for (int j = 0; j < l; j++) c[j] = (char) (fold(buf[p + j]) & 0xFF);
+                labels[i] = new String(c);
+                p += l;
+            }
+            return labels;
+        }
+
+        // Lowercased presentation-format name with a trailing dot (for logs and admin output)
+        String name() {
+            StringBuilder sb = new StringBuilder();
+            for (int p = off; p < off + len - 5; ) {
+                int l = buf[p++] & 0xFF;
+                for (int i = 0; i < l; i++) sb.append((char) (fold(buf[p + i]) & 0xFF));
+                sb.append('.');
+                p += l;
+            }
+            return sb.length() == 0 ? "." : sb.toString();
+        }
+
+        @Override public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CacheKey)) return false;
+            CacheKey k = (CacheKey) o;
+            if (hash != k.hash || dnssec != k.dnssec || !Arrays.equals(subnet, k.subnet)) return false;
+            return sameQuestion(k);
+        }
+
+        // Same question (name case-insensitively, type, class), whatever the dnssec bits and subnet
+        boolean sameQuestion(CacheKey k) {
+            if (k == null || len != k.len) return false;
+            for (int i = 0; i < len; i++) {
+                byte a = buf[off + i], b = k.buf[k.off + i];
+                if (i < len - 4 ? fold(a) != fold(b) : a != b) return false;
+            }
+            return true;
+        }
+
+        @Override public int hashCode() { return (int) (hash ^ (hash >>> 32)); }
+
+        @Override public String toString() {
+            return name() + " type=" + qtype() + " class=" + qclass() + ((dnssec & CD) != 0 ? " cd" : "")
+                    + ((dnssec & DO) != 0 ? " do" : "") + (subnet == null ? "" : " subnet=" + ecsSubnetToString(subnet));
+        }
+
+        private static byte fold(byte c) { return c >= 'A' && c <= 'Z' ? (byte) (c + 32) : c; }
+
+        // SipHash-2-4 of b[off, off + len), ASCII-lowercasing the first foldLen bytes
+        private static long sipHash(byte[] b, int off, int len, int foldLen) {
+            long v0 = K0 ^ 0x736f6d6570736575L, v1 = K1 ^ 0x646f72616e646f6dL;
+            long v2 = K0 ^ 0x6c7967656e657261L, v3 = K1 ^ 0x7465646279746573L;
+            int i = 0;
+            while (true) {
+                boolean last = i + 8 > len;
+                long m = last ? (long) len << 56 : 0;
+                int n = last ? len - i : 8;
+                for (int j = n - 1; j >= 0; j--) {
+                    byte c = b[off + i + j];
+                    m |= (long) ((i + j < foldLen ? fold(c) : c) & 0xFF) << (8 * j);
+                }
+                v3 ^= m;
+                for (int r = 0; r < 2; r++) {
+                    v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                    v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                    v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                    v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+                }
+                v0 ^= m;
+                if (last) break;
+                i += 8;
+            }
+            v2 ^= 0xFF;
+            for (int r = 0; r < 4; r++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            return v0 ^ v1 ^ v2 ^ v3;
+        }
+    }
+
+    private static final class CacheEntry {
+        private static final AtomicIntegerFieldUpdater<CacheEntry> HITS = AtomicIntegerFieldUpdater.newUpdater(CacheEntry.class, "hits");
+        private static final AtomicIntegerFieldUpdater<CacheEntry> PREFETCHING = AtomicIntegerFieldUpdater.newUpdater(CacheEntry.class, "prefetching");
+
+        final byte[] response;   // raw upstream response, TTLs as received (null when stored off-heap)
+        final long handle;       // SlabAllocator handle when stored off-heap, otherwise -1
+        final int length;        // response length in bytes
+        final int questionEnd;   // offset just past the question section
+        final int[] ttlOffsets;  // offset of every RR TTL field (OPT excluded), so hits need no parsing; null off-heap (see ttlOffset)
+        final int ttlCount;
+        final long storedAt;     // epoch millis
+        final long expiresAt;    // epoch millis
+        private volatile int hits;
+        private volatile int hotFrom;     // hits counted before the current hot window (see startHotWindow)
+        private volatile int prefetching; // 1 while a prefetch of this entry is being started
+        ClientUsage owner;       // client subnet charged for this entry (set before it is stored), or null
+        volatile SiblingPairs.Domain speculation; // set when stored by a sibling speculation that no client has used yet
+        private volatile TimerWheel.Timer prefetchTimer;
+        private volatile boolean released;
+
+        private CacheEntry(byte[] response, long handle, int length, int questionEnd, int[] ttlOffsets, int ttlCount, long storedAt, long expiresAt) {
+            this.response = response;
+            this.handle = handle;
+            this.length = length;
+            this.questionEnd = questionEnd;
+            this.ttlOffsets = ttlOffsets;
+            this.ttlCount = ttlCount;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        // Create an entry holding a copy of response, off-heap when enabled and the response plus its
+        // TTL offset table fit a slab class. Returns null if the message cannot be parsed or the
+        // off-heap budget is exhausted.
+        static CacheEntry create(byte[] response, long storedAt, long expiresAt) {
+            int[] offsets = ttlOffsets(response);
+            if (offsets == null) return null;
+            int qend = findQuestionEnd(response, 12);
+            if (SLABS == null || response.length + 2 * offsets.length > SlabAllocator.MAX_CHUNK) {
+                return new CacheEntry(response.clone(), -1, response.length, qend, offsets, offsets.length, storedAt, expiresAt);
+            }
+            long h = SLABS.allocate(response, offsets);
+            return h < 0 ? null : new CacheEntry(null, h, response.length, qend, null, offsets.length, storedAt, expiresAt);
+        }
+
+        // Heap bytes of the stored response and its TTL offset table (arrays with their headers), or
+        // the whole slab chunk holding both when off-heap
+        int payloadBytes() {
+            return handle < 0 ? 16 + length + 16 + 4 * ttlCount : SlabAllocator.chunkSize(handle);
+        }
+
+        // Offset of the i-th TTL field. Off-heap the table is stored after the response as 16-bit
+        // values, so it is read from the copy made by copyInto rather than from the (reusable) chunk.
+        int ttlOffset(byte[] copy, int i) {
+            return handle < 0 ? ttlOffsets[i] : readU16(copy, length + 2 * i);
+        }
+
+        int hit() { return HITS.incrementAndGet(this); }
+
+        // Count hits from now on for recentHits
+        void startHotWindow() { hotFrom = hits; }
+        int recentHits() { return hits - hotFrom; }
+
+        // Only one prefetch of the entry starts; unclaim if it could not be started after all
+        boolean claimPrefetch() { return PREFETCHING.compareAndSet(this, 0, 1); }
+        void unclaimPrefetch() { prefetching = 0; }
+
+        // Returns a private copy of the response, or null if the entry was released concurrently
+        byte[] copyResponse() {
+            byte[] out = new byte[length];
+            return copy(out, length) < 0 ? null : out;
+        }
+
+        // Copy the response into dst without allocating, followed by its TTL offset table when stored
+        // off-heap; returns the response length, or -1 if the entry was released concurrently
+        int copyInto(byte[] dst) {
+            return copy(dst, handle < 0 ? length : SlabAllocator.storedLength(handle));
+        }
+
+        private int copy(byte[] dst, int n) {
+            if (handle < 0) {
+                System.arraycopy(response, 0, dst, 0, n);
+                return length;
+            }
+            SLABS.readInto(handle, dst, n);
+            VarHandle.acquireFence();
+            return released ? -1 : length; // the chunk may have been reused while we copied it
+        }
+
+        // Called once the entry has left its store; returns off-heap memory to the allocator
+        void release() {
+            if (released) return;
+            released = true;
+            TimerWheel.Timer t = prefetchTimer;
+            if (t != null) t.cancel();
+            if (handle >= 0) SLABS.free(handle);
+        }
+
+        boolean isReleased() { return released; }
+
+        void armPrefetch(TimerWheel.Timer t) {
+            prefetchTimer = t;
+            if (released) t.cancel();
+        }
+
+        // Start of the prefetch window: the last PREFETCH_TTL_PERCENT of the TTL
+        long prefetchAt() { return expiresAt - (expiresAt - storedAt) * PREFETCH_TTL_PERCENT / 100; }
+
+        // Start of the hot window, as long as the prefetch window and just before it
+        long hotWindowAt() { return expiresAt - (expiresAt - storedAt) * PREFETCH_TTL_PERCENT / 50; }
+
+        // Expired entries are kept this long so they can be served if the upstream fails (RFC 8767)
+        long staleUntil() { return expiresAt + CACHE_STALE_WINDOW_SECS * 1000L; }
+    }
+
+    // Byte-bounded store of cache entries; one instance per budget. Keys are spread over a
+    // power-of-two number of independent shards by hash, each with its own slice of the budget and
+    // its own eviction state, so concurrent lookups and inserts rarely touch the same lock.
+    private static final class CacheStore {
+        // Estimated object sizes on a 64-bit JVM with compressed oops
+        private static final int KEY_OVERHEAD = 64;    // CacheKey + its byte[] header
+        private static final int ENTRY_OVERHEAD = 80;  // CacheEntry (its arrays are in payloadBytes)
+        private static final int INDEX_OVERHEAD = 136; // shard Node + ConcurrentHashMap node + table slot + expiry timer + index key slot
+        private static final int LABEL_OVERHEAD = 200; // per label below the TLD: suffix index node, label String, parent's map entry (--bench weight)
+        private static final int OWNER_OVERHEAD = 112; // ClientUsage LinkedHashMap entry + expiry credit timer
+        private static final int QUOTA_EVICTIONS_PER_PUT = 64;
+
+        private final CacheShard[] shards;
+        private final long maxBytes;
+        private final long quotaBytes; // per client subnet
+        private final ConcurrentHashMap<String, ClientUsage> usage = new ConcurrentHashMap<>();
+        private final AtomicLong quotaEvictions = new AtomicLong();
+
+        CacheStore(long maxBytes, int shardCount) { this(maxBytes, shardCount, 100); }
+
+        CacheStore(long maxBytes, int shardCount, int clientQuotaPercent) {
+            int n = shardCount <= 1 ? 1 : Integer.highestOneBit(shardCount - 1) << 1;
+            this.shards = new CacheShard[n];
+            this.maxBytes = Math.max(1, maxBytes);
+            this.quotaBytes = this.maxBytes * Math.min(100, Math.max(1, clientQuotaPercent)) / 100;
+            for (int i = 0; i < n; i++) shards[i] = new CacheShard(Math.max(1, this.maxBytes / n));
+        }
+
+        // Bytes charged for one entry: key, response (its slab chunk when off-heap), TTL offsets and
+        // index. Every label is charged as if the entry brought it into the index on its own.
+        static int weigh(CacheKey key, CacheEntry e) {
+            int subnet = key.subnet == null ? 0 : 16 + key.subnet.length;
+            return KEY_OVERHEAD + key.length() + subnet + ENTRY_OVERHEAD + e.payloadBytes() + INDEX_OVERHEAD
+                    + LABEL_OVERHEAD * Math.max(0, key.labelCount() - 1)
+                    + (e.owner != null ? OWNER_OVERHEAD : 0);
+        }
+
+        // Returns the entry for key (possibly expired but still within the stale window); never blocks
+        CacheEntry get(CacheKey key, long now) { return shardFor(key).get(key, now); }
+        void put(CacheKey key, CacheEntry e) { shardFor(key).put(key, e); }
+
+        // Insert on behalf of a client. If the fresh entries its subnet holds (not counting the one
+        // this insert replaces) would go over the quota, the subnet's oldest entries are evicted to
+        // make room, so a busy client keeps caching at the expense of its own entries only.
+        // Returns false (and releases the entry) only if the entry alone is larger than the quota.
+        boolean put(CacheKey key, CacheEntry e, InetAddress client) {
+            String subnet = quotaBytes < maxBytes ? ClientUsage.subnetOf(client) : null;
+            if (subnet != null) {
+                ClientUsage u = usage.computeIfAbsent(subnet, ClientUsage::new);
+                e.owner = u;
+                int weight = weigh(key, e);
+                if (weight > quotaBytes) {
+                    e.release();
+                    return false;
+                }
+                for (int i = 0; i < QUOTA_EVICTIONS_PER_PUT && u.bytesWithout(key) + weight > quotaBytes; i++) {
+                    CacheShard.Node victim = u.oldest(key);
+                    if (victim == null) break;
+                    if (!u.overQuota) log("Cache quota of " + quotaBytes + " bytes reached for " + subnet + " - evicting its oldest entries");
+                    u.overQuota = true;
+                    if (shardFor(victim.key).remove(victim.key, victim)) quotaEvictions.incrementAndGet();
+                    else u.credit(victim); // already gone from the shard
+                }
+                if (u.bytesWithout(key) + weight > quotaBytes) {
+                    e.release();
+                    return false;
+                }
+                if (u.bytes() + weight <= quotaBytes / 2) u.overQuota = false;
+            }
+            put(key, e);
+            return true;
+        }
+
+        long quotaEvictions() { return quotaEvictions.get(); }
+
+        // Forget subnets that no longer hold any entries
+        void sweepUsage() { usage.values().removeIf(u -> u.bytes() <= 0); }
+        boolean remove(CacheKey key) { return shardFor(key).remove(key); }
+
+        // Remove the entries for a name (or every name under it when subdomains is set; any name when
+        // labels is null), optionally only of one qtype (-1 for all). Returns the number removed.
+        int purge(String[] labels, boolean subdomains, int qtype) {
+            int removed = 0;
+            for (CacheShard s : shards) {
+                for (CacheKey key : s.find(labels, subdomains, qtype)) {
+                    if (s.remove(key)) removed++;
+                }
+            }
+            return removed;
+        }
+
+        // Current entries, shard by shard
+        Map<CacheKey, CacheEntry> entries() {
+            Map<CacheKey, CacheEntry> out = new LinkedHashMap<>();
+            for (CacheShard s : shards) s.collect(out);
+            return out;
+        }
+
+        long bytesUsed() {
+            long total = 0;
+            for (CacheShard s : shards) total += s.bytesUsed();
+            return total;
+        }
+
+        int size() {
+            int total = 0;
+            for (CacheShard s : shards) total += s.size();
+            return total;
+        }
+
+        long maxBytes() { return maxBytes; }
+        int shardCount() { return shards.length; }
+
+        private CacheShard shardFor(CacheKey key) {
+            int h = key.hashCode() * 0x9E3779B9;
+            return shards[(h >>> 16) & (shards.length - 1)];
+        }
+    }
+
+    // Fresh entries of one cache store inserted by a client subnet (CLIENT_QUOTA_PREFIX_V4 / _V6 bits
+    // of the address), oldest first, and their bytes. Shards charge an entry when it is stored and
+    // credit it when it expires or leaves the store; expired entries kept for serve-stale are free.
+    private static final class ClientUsage {
+        final String subnet;
+        private final LinkedHashMap<CacheKey, CacheShard.Node> entries = new LinkedHashMap<>();
+        private long bytes;
+        volatile boolean overQuota; // evicting for the quota (logged once per episode)
+
+        ClientUsage(String subnet) { this.subnet = subnet; }
+
+        synchronized long bytes() { return bytes; }
+
+        // Bytes held, leaving out the current entry for key
+        synchronized long bytesWithout(CacheKey key) {
+            CacheShard.Node n = entries.get(key);
+            return bytes - (n == null ? 0 : n.weight);
+        }
+
+        // Oldest charged entry other than the one for key, or null
+        synchronized CacheShard.Node oldest(CacheKey key) {
+            for (CacheShard.Node n : entries.values()) {
+                if (!n.key.equals(key)) return n;
+            }
+            return null;
+        }
+
+        synchronized void charge(CacheShard.Node n) {
+            CacheShard.Node old = entries.remove(n.key);
+            if (old != null) bytes -= old.weight;
+            entries.put(n.key, n);
+            bytes += n.weight;
+        }
+
+        synchronized void credit(CacheShard.Node n) {
+            if (entries.remove(n.key, n)) bytes -= n.weight;
+        }
+
+        // "a.b.c.0/24" style subnet of a client, or null for local clients, which have no quota
+        static String subnetOf(InetAddress addr) {
+            if (addr == null || addr.isLoopbackAddress() || addr.isAnyLocalAddress()) return null;
+            byte[] a = addr.getAddress();
+            int prefix = a.length == 4 ? CLIENT_QUOTA_PREFIX_V4 : CLIENT_QUOTA_PREFIX_V6;
+            for (int bit = prefix; bit < a.length * 8; bit++) a[bit / 8] &= (byte) ~(0x80 >>> (bit % 8));
+            try {
+                return InetAddress.getByAddress(a).getHostAddress() + "/" + prefix;
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
+    }
+
+    // One shard of a CacheStore, using W-TinyLFU over a byte budget.
+    // New entries enter a small LRU window (1% of the budget). Entries leaving the window compete
+    // with the least recently used entry of the main segmented LRU (probation + protected), and are
+    // only admitted if the frequency sketch has seen them more often, so one-hit wonders cannot
+    // evict popular entries. Entries are evicted until the weighted total is back under the budget.
+    //
+    // Reads never take the lock: they go straight to a ConcurrentHashMap and record the access in a
+    // small lossy ring buffer, which is drained into the policy (sketch + LRU order) whenever the
+    // lock is free. Writes and evictions are done under the lock.
+    private static final class CacheShard {
+        private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+        private static final int TYPICAL_ENTRY_BYTES = 256;
+        private static final int READ_BUFFER_SIZE = 64; // power of two
+        private static final int DRAIN_THRESHOLD = 16;  // power of two, below READ_BUFFER_SIZE
+        private static final long MISS_TAG = 1L << 32;
+
+        private final ConcurrentHashMap<CacheKey, Node> map = new ConcurrentHashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final AtomicReferenceArray<Node> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE); // hits
+        private final AtomicLongArray missBuffer = new AtomicLongArray(READ_BUFFER_SIZE); // MISS_TAG | key hash, or 0
+        private final AtomicInteger readCursor = new AtomicInteger();
+        private final Node[] queues = new Node[3]; // circular list sentinels, LRU at next, MRU at prev
+        private final long[] weights = new long[3];
+        private final long maxBytes;
+        private final long windowMax;
+        private final long protectedMax;
+        private final FrequencySketch sketch;
+        private final SuffixIndex index = new SuffixIndex(); // guarded by lock
+        private volatile long weightedSize;
+
+        CacheShard(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.windowMax = Math.max(1, maxBytes / 100);
+            this.protectedMax = (maxBytes - windowMax) * 8 / 10;
+            this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(64, maxBytes / TYPICAL_ENTRY_BYTES)));
+            for (int q = 0; q < queues.length; q++) {
+                Node s = new Node(null, null, 0);
+                s.prev = s.next = s;
+                queues[q] = s;
+            }
+        }
+
+        CacheEntry get(CacheKey key, long now) {
+            Node n = map.get(key);
+            if (n == null) {
+                recordRead(null, key.hashCode()); // only the hash: a probe key is reused by its thread
+                return null;
+            }
+            if (now >= n.value.staleUntil()) return null; // its expiry timer removes it
+            recordRead(n, 0);
+            return n.value;
+        }
+
+        void put(CacheKey key, CacheEntry e) {
+            int weight = CacheStore.weigh(key, e);
+            String[] labels = key.labels(); // built before locking: the index only links them in
+            lock.lock();
+            try {
+                drainReads();
+                Node n = map.get(key);
+                if (n != null) evict(n);
+                if (weight > maxBytes) {
+                    e.release();
+                    return;
+                }
+                Node node = n = new Node(key, e, weight);
+                map.put(key, n);
+                n.leaf = index.add(key, labels);
+                n.expiry = TIMERS.scheduleAt(e.staleUntil(), () -> remove(key, node));
+                if (e.owner != null) {
+                    ClientUsage owner = e.owner;
+                    owner.charge(n);
+                    n.uncharge = TIMERS.scheduleAt(e.expiresAt, () -> owner.credit(node));
+                }
+                weightedSize += weight;
+                sketch.increment(key.hashCode());
+                link(WINDOW, n);
+
+                // Entries pushed out of the window become admission candidates at the MRU end of probation
+                int candidates = 0;
+                while (weights[WINDOW] > windowMax) {
+                    Node c = queues[WINDOW].next;
+                    unlink(c);
+                    link(PROBATION, c);
+                    candidates++;
+                }
+                while (weightedSize > maxBytes) {
+                    Node candidate = candidates > 0 ? queues[PROBATION].prev : null;
+                    Node victim = lru(PROBATION);
+                    if (victim == null || victim == candidate) victim = lru(PROTECTED);
+                    if (victim == null) victim = lru(WINDOW);
+                    if (candidate != null && victim != null
+                            && sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                        evict(victim);
+                    } else if (candidate != null) {
+                        evict(candidate);
+                        candidates--;
+                    } else {
+                        evict(victim);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean remove(CacheKey key) { return remove(key, null); }
+
+        // Remove key, but only if it still maps to 'expected' when that is non-null
+        private boolean remove(CacheKey key, Node expected) {
+            lock.lock();
+            try {
+                Node n = map.get(key);
+                if (n == null || (expected != null && n != expected)) return false;
+                evict(n);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void collect(Map<CacheKey, CacheEntry> out) {
+            lock.lock();
+            try {
+                for (int q : new int[]{PROTECTED, PROBATION, WINDOW}) {
+                    for (Node n = queues[q].next; n != queues[q]; n = n.next) out.put(n.key, n.value);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Keys in this shard matching a purge (see SuffixIndex.find)
+        List<CacheKey> find(String[] labels, boolean subdomains, int qtype) {
+            lock.lock();
+            try {
+                return index.find(labels, subdomains, qtype);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long bytesUsed() { return weightedSize; }
+        int size() { return map.size(); }
+
+        // Buffer a read and drain the buffer once every DRAIN_THRESHOLD reads if nobody holds the lock
+        private void recordRead(Node hit, int missHash) {
+            int c = readCursor.getAndIncrement();
+            if (hit != null) readBuffer.lazySet(c & (READ_BUFFER_SIZE - 1), hit);
+            else missBuffer.lazySet(c & (READ_BUFFER_SIZE - 1), MISS_TAG | (missHash & 0xFFFFFFFFL));
+            if ((c & (DRAIN_THRESHOLD - 1)) == DRAIN_THRESHOLD - 1 && lock.tryLock()) {
+                try { drainReads(); } finally { lock.unlock(); }
+            }
+        }
+
+        // Apply buffered reads to the policy (caller holds the lock)
+        private void drainReads() {
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                Node n = readBuffer.get(i);
+                if (n != null) {
+                    readBuffer.lazySet(i, null);
+                    sketch.increment(n.key.hashCode());
+                    if (n.prev != null) onHit(n); // skip nodes evicted since the read
+                }
+                long miss = missBuffer.get(i);
+                if (miss != 0) {
+                    missBuffer.lazySet(i, 0);
+                    sketch.increment((int) miss);
+                }
+            }
+        }
+
+        private void onHit(Node n) {
+            unlink(n);
+            if (n.queue == WINDOW) {
+                link(WINDOW, n);
+            } else {
+                link(PROTECTED, n);
+                while (weights[PROTECTED] > protectedMax) {
+                    Node demoted = queues[PROTECTED].next;
+                    unlink(demoted);
+                    link(PROBATION, demoted);
+                }
+            }
+        }
+
+        private Node lru(int q) {
+            Node n = queues[q].next;
+            return n == queues[q] ? null : n;
+        }
+
+        private void evict(Node n) {
+            if (n.expiry != null) n.expiry.cancel();
+            unlink(n);
+            map.remove(n.key);
+            index.remove(n.key, n.leaf);
+            if (n.uncharge != null) n.uncharge.cancel();
+            if (n.value.owner != null) n.value.owner.credit(n);
+            weightedSize -= n.weight;
+            n.value.release();
+        }
+
+        private void link(int q, Node n) {
+            Node s = queues[q];
+            n.queue = q;
+            n.prev = s.prev;
+            n.next = s;
+            s.prev.next = n;
+            s.prev = n;
+            weights[q] += n.weight;
+        }
+
+        private void unlink(Node n) {
+            n.prev.next = n.next;
+            n.next.prev = n.prev;
+            n.prev = n.next = null;
+            weights[n.queue] -= n.weight;
+        }
+
+        private static final class Node {
+            final CacheKey key;
+            final CacheEntry value;
+            final int weight;
+            Node prev, next;
+            int queue;
+            TimerWheel.Timer expiry; // removes the entry once it is past its stale window
+            TimerWheel.Timer uncharge; // credits the owner's quota once the entry expires
+            SuffixIndex.LabelNode leaf; // where the key sits in the shard's index
+
+            Node(CacheKey key, CacheEntry value, int weight) {
+                this.key = key;
+                this.value = value;
+                this.weight = weight;
+            }
+        }
+    }
+
+    // Reverse-label index of the keys in one CacheShard (com -> example -> www -> keys), so a purge
+    // finds every name under a suffix without scanning the cache. It is guarded by the shard's lock;
+    // the shard builds a key's label Strings before taking the lock and keeps the key's leaf node,
+    // so add only links nodes in and remove needs no labels at all. Lookups never touch the index. Child maps
+    // and key arrays are created on first use, as most nodes have only one of the two.
+    private static final class SuffixIndex {
+        private final LabelNode root = new LabelNode(null, null);
+
+        // Index key under its labels (key.labels()); returns the leaf node to pass to remove
+        LabelNode add(CacheKey key, String[] labels) {
+            LabelNode n = root;
+            for (int i = labels.length - 1; i >= 0; i--) {
+                LabelNode parent = n;
+                if (n.children == null) n.children = new HashMap<>(4);
+                n = n.children.computeIfAbsent(labels[i], l -> new LabelNode(l, parent));
+            }
+            if (n.keys == null) n.keys = new CacheKey[1];
+            else if (n.keyCount == n.keys.length) n.keys = Arrays.copyOf(n.keys, n.keyCount * 2);
+            n.keys[n.keyCount++] = key;
+            return n;
+        }
+
+        void remove(CacheKey key, LabelNode n) {
+            if (n == null) return;
+            for (int i = 0; i < n.keyCount; i++) {
+                if (n.keys[i] == key) {
+                    n.keys[i] = n.keys[--n.keyCount];
+                    n.keys[n.keyCount] = null;
+                    break;
+                }
+            }
+            if (n.keyCount == 0) n.keys = null;
+            // Drop label nodes that no longer lead to any key
+            while (n.parent != null && n.keys == null && (n.children == null || n.children.isEmpty())) {
+                n.parent.children.remove(n.label);
+                n = n.parent;
+            }
+        }
+
+        // Keys for the name (and every name under it when subdomains is set; all names when labels
+        // is null), of one qtype or all types (-1)
+        List<CacheKey> find(String[] labels, boolean subdomains, int qtype) {
+            List<CacheKey> out = new ArrayList<>();
+            LabelNode n = labels == null ? root : node(labels);
+            if (n == null) return out;
+            Deque<LabelNode> todo = new ArrayDeque<>();
+            todo.push(n);
+            while (!todo.isEmpty()) {
+                LabelNode c = todo.pop();
+                for (int i = 0; i < c.keyCount; i++) if (qtype < 0 || c.keys[i].qtype() == qtype) out.add(c.keys[i]);
+                if ((subdomains || labels == null) && c.children != null) todo.addAll(c.children.values());
+            }
+            return out;
+        }
+
+        // Lowercased labels of a presentation-format name ("Corp.Example.com." -> corp, example, com)
+        static String[] labelsOf(String name) {
+            List<String> labels = new ArrayList<>();
+            for (String l : name.toLowerCase(Locale.ROOT).split("\\.")) {
+                if (!l.isEmpty()) labels.add(l);
+            }
+            return labels.toArray(new String[0]);
+        }
+
+        private LabelNode node(String[] labels) {
+            LabelNode n = root;
+            for (int i = labels.length - 1; i >= 0 && n != null; i--) n = n.children == null ? null : n.children.get(labels[i]);
+            return n;
+        }
+
+        static final class LabelNode {
+            final String label;
+            final LabelNode parent;
+            Map<String, LabelNode> children; // null until the first child
+            CacheKey[] keys;                 // keys[0, keyCount); null while there are none
+            int keyCount;
+
+            LabelNode(String label, LabelNode parent) {
+                this.label = label;
+                this.parent = parent;
+            }
+        }
+    }
+
+    // Count-min sketch of key popularity: four rows of 4-bit (saturating) counters. After
+    // 10 * capacity increments every counter is halved, so past popularity fades out over time.
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+        private final byte[] table;
+        private final int rowMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(64, capacity - 1) << 1);
+            this.table = new byte[width * SEEDS.length];
+            this.rowMask = width - 1;
+            this.sampleSize = 10 * Math.max(capacity, 1);
+        }
+
+        int frequency(int hash) {
+            int min = 15;
+            for (int i = 0; i < SEEDS.length; i++) min = Math.min(min, table[index(hash, i)]);
+            return min;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int idx = index(hash, i);
+                if (table[idx] < 15) {
+                    table[idx]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) table[i] >>= 1;
+                additions /= 2;
+            }
+        }
+
+        private int index(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[(row + 1) & 3];
+            h ^= h >>> 29;
+            return row * (rowMask + 1) + (int) (h & rowMask);
+        }
+    }
+
+    // Response cache with separate budgets for positive answers and RFC 2308 negative answers
+    // (NXDOMAIN / NODATA), so a flood of misses cannot push out the useful entries.
+    private static final class ResponseCache {
+        private final CacheStore positive;
+        private final CacheStore negative;
+
+        ResponseCache(long maxBytes, long maxNegativeBytes) {
+            this.positive = new CacheStore(maxBytes, CACHE_SHARDS, CLIENT_CACHE_QUOTA_PERCENT);
+            this.negative = new CacheStore(maxNegativeBytes, CACHE_SHARDS, CLIENT_CACHE_QUOTA_PERCENT);
+        }
+
+        long bytesUsed() { return positive.bytesUsed() + negative.bytesUsed(); }
+
+        String stats() {
+            return String.format("positive %d entries / %d of %d bytes, negative %d entries / %d of %d bytes, %d evicted for client quota",
+                    positive.size(), positive.bytesUsed(), positive.maxBytes(),
+                    negative.size(), negative.bytesUsed(), negative.maxBytes(),
+                    positive.quotaEvictions() + negative.quotaEvictions());
+        }
+
+        // Returns the entry for key, fresh or stale (check expiresAt); null on miss. A subnet key
+        // falls back to the shared entry for its question (ECS scope /0).
+        CacheEntry lookup(CacheKey key, long now) {
+            CacheEntry e = lookupExact(key, now);
+            return e != null || key.global == key ? e : lookupExact(key.global, now);
+        }
+
+        private CacheEntry lookupExact(CacheKey key, long now) {
+            CacheEntry e = positive.get(key, now);
+            return e != null ? e : negative.get(key, now);
+        }
+
+        // Write the cached response into out with the request's ID and question, patching the TTLs
+        // in place: reduced by the time spent in the cache, or STALE_ANSWER_TTL_SECS once expired.
+        // Allocation-free. Returns the response length, or -1 if it cannot be used for this request.
+        int answerInto(CacheEntry e, byte[] request, byte[] out, long now) {
+            int qend = findQuestionEnd(request, 12);
+            if (qend != e.questionEnd || e.copyInto(out) < 0) return -1;
+            out[0] = request[0];
+            out[1] = request[1];
+            out[2] = (byte) ((out[2] & ~0x01) | (request[2] & 0x01));
+            System.arraycopy(request, 12, out, 12, qend - 12);
+            boolean fresh = now < e.expiresAt;
+            long elapsed = fresh ? (now - e.storedAt) / 1000 : Long.MAX_VALUE / 2;
+            int floor = fresh ? 0 : STALE_ANSWER_TTL_SECS;
+            for (int i = 0; i < e.ttlCount; i++) {
+                int off = e.ttlOffset(out, i);
+                long ttl = readU32(out, off);
+                if (ttl > Integer.MAX_VALUE) ttl = 0;
+                writeU32(out, off, Math.max(floor, ttl - elapsed));
+            }
+            return e.length;
+        }
+
+        // Remove cached answers for a name, or for every name under a domain suffix, optionally of a
+        // single qtype (-1 for all); name null purges the qtype everywhere. Subnet-partitioned
+        // entries for the name go too. Lookups keep running while the entries are removed.
+        int purge(String name, boolean subdomains, int qtype) {
+            String[] labels = name == null ? null : SuffixIndex.labelsOf(name);
+            return positive.purge(labels, subdomains, qtype) + negative.purge(labels, subdomains, qtype);
+        }
+
+        void sweepClientUsage() {
+            positive.sweepUsage();
+            negative.sweepUsage();
+        }
+
+        Map<CacheKey, CacheEntry> positiveEntries() { return positive.entries(); }
+        Map<CacheKey, CacheEntry> negativeEntries() { return negative.entries(); }
+
+        // Re-insert an entry loaded from a snapshot with its original timestamps
+        void restore(CacheKey key, byte[] response, long storedAt, long expiresAt, boolean isNegative) {
+            CacheEntry e = CacheEntry.create(response, storedAt, expiresAt);
+            if (e != null) (isNegative ? negative : positive).put(key, e);
+        }
+
+        CacheEntry put(CacheKey key, byte[] response) { return put(key, response, null); }
+
+        // Store an untruncated NOERROR answer for its minimum RR TTL, or an NXDOMAIN/NODATA answer
+        // for its negative TTL. Anything else (SERVFAIL, REFUSED, ...) is not cached. The insert counts
+        // against the quota of client's subnet (none if null). Returns the new entry, or null if
+        // nothing was stored.
+        CacheEntry put(CacheKey key, byte[] response, InetAddress client) {
+            if (response.length < 12 || (response[2] & 0x80) == 0 || (response[2] & 0x02) != 0) return null;
+            if (!key.sameQuestion(CacheKey.fromQuestion(response))) return null;
+            int rcode = response[3] & 0x0F;
+            long now = TIMERS.millis();
+            if (rcode == 0 && readU16(response, 6) > 0) {
+                long ttl = minTtl(response);
+                if (ttl <= 0 || ttl == Long.MAX_VALUE) return null;
+                ttl = Math.min(ttl, CACHE_MAX_TTL_SECS);
+                CacheEntry e = CacheEntry.create(response, now, now + ttl * 1000);
+                if (e == null) return null;
+                negative.remove(key);
+                return positive.put(key, e, client) ? e : null;
+            } else if (rcode == 0 || rcode == 3) {
+                byte[] copy = response.clone();
+                long ttl = clampNegativeTtl(copy);
+                if (ttl <= 0) return null;
+                CacheEntry e = CacheEntry.create(copy, now, now + ttl * 1000);
+                if (e == null) return null;
+                positive.remove(key);
+                return negative.put(key, e, client) ? e : null;
+            }
+            return null;
+        }
+    }
+
+    // Resolution failures per question (RFC 9520 section 3.2): after the upstream fails, further
+    // queries get SERVFAIL without another DoH attempt for FAILURE_CACHE_MIN_SECS, doubling on each
+    // consecutive failure up to FAILURE_CACHE_MAX_SECS. A success forgets the question; so does a
+    // quiet period as long as the last backoff, so a dead zone that recovers is retried promptly.
+    private static final class FailureCache {
+        private static final int HARD_MAX_SECS = 300; // RFC 9520: failures MUST NOT be cached longer
+
+        private final ConcurrentHashMap<CacheKey, long[]> failures = new ConcurrentHashMap<>(); // {until ms, backoff secs}
+
+        boolean isFailing(CacheKey key, long now) {
+            long[] f = failures.get(key);
+            return f != null && now < f[0];
+        }
+
+        // Returns the backoff in seconds now applied to key, or 0 if the table is full
+        int recordFailure(CacheKey key, long now) {
+            if (failures.size() >= FAILURE_CACHE_MAX_ENTRIES && !failures.containsKey(key)) {
+                expire(now);
+                if (failures.size() >= FAILURE_CACHE_MAX_ENTRIES) return 0;
+            }
+            long[] f = failures.compute(key, (k, old) -> {
+                long backoff = FAILURE_CACHE_MIN_SECS;
+                if (old != null && now < old[0] + old[1] * 1000) {
+                    backoff = Math.min(Math.min(old[1] * 2, FAILURE_CACHE_MAX_SECS), HARD_MAX_SECS);
+                }
+                return new long[]{now + backoff * 1000, backoff};
+            });
+            return (int) f[1];
+        }
+
+        void recordSuccess(CacheKey key) {
+            if (!failures.isEmpty()) failures.remove(key);
+        }
+
+        // Forget questions whose backoff ended long enough ago that the next failure starts over
+        void expire(long now) {
+            failures.values().removeIf(f -> now >= f[0] + f[1] * 1000);
+        }
+
+        int size() { return failures.size(); }
+    }
+
+    // Learns, per domain (the last two labels of the name), whether speculative sibling queries
+    // get used. Every SIBLING_WINDOW speculations the domain is judged: if clients asked for fewer
+    // than SIBLING_MIN_USE_PERCENT of the siblings, speculation pauses there for SIBLING_PAUSE_SECS
+    // and is then tried again. Counts are approximate; a sibling asked after its verdict counts
+    // toward the next one.
+    private static final class SiblingPairs {
+        private final ConcurrentHashMap<String, Domain> domains = new ConcurrentHashMap<>();
+        private final AtomicLong issued = new AtomicLong();
+        private final AtomicLong used = new AtomicLong();
+
+        // The domain to charge a speculation for key to, or null if speculation is paused there
+        Domain admit(CacheKey key, long now) {
+            String[] labels = key.labels();
+            String name = labels.length <= 2 ? String.join(".", labels) : labels[labels.length - 2] + "." + labels[labels.length - 1];
+            Domain d = domains.get(name);
+            if (d == null) {
+                if (domains.size() >= SIBLING_MAX_DOMAINS) {
+                    sweep(now);
+                    if (domains.size() >= SIBLING_MAX_DOMAINS) return null;
+                }
+                d = domains.computeIfAbsent(name, Domain::new);
+            }
+            d.lastIssued = now;
+            return now < d.pausedUntil ? null : d;
+        }
+
+        // Forget domains that are not paused and have not been speculated on for a while
+        void sweep(long now) {
+            domains.values().removeIf(d -> now >= d.pausedUntil && now - d.lastIssued > SIBLING_PAUSE_SECS * 1000L);
+        }
+
+        String stats() {
+            long paused = domains.values().stream().filter(d -> TIMERS.millis() < d.pausedUntil).count();
+            return issued.get() + " sibling prefetches (" + used.get() + " used), " + paused + " domains paused";
+        }
+
+        final class Domain {
+            final String name;
+            private final AtomicInteger windowIssued = new AtomicInteger();
+            private final AtomicInteger windowUsed = new AtomicInteger();
+            volatile long pausedUntil;
+            volatile long lastIssued;
+
+            Domain(String name) { this.name = name; }
+
+            void issued() {
+                issued.incrementAndGet();
+                if (windowIssued.incrementAndGet() != SIBLING_WINDOW) return;
+                int u = windowUsed.getAndSet(0);
+                windowIssued.set(0);
+                if (u * 100 < SIBLING_WINDOW * SIBLING_MIN_USE_PERCENT) {
+                    pausedUntil = TIMERS.millis() + SIBLING_PAUSE_SECS * 1000L;
+                    log("Sibling prefetch paused for " + name + " (" + u + " of " + SIBLING_WINDOW + " used)");
+                }
+            }
+
+            void used() {
+                used.incrementAndGet();
+                windowUsed.incrementAndGet();
+            }
+        }
+    }
+
+    // Full answers that went out truncated over UDP, keyed by client address and question, so the
+    // TCP retry that follows (RFC 7766) does not repeat the DoH exchange. Entries live a few seconds
+    // and are used once. Answers the response cache will serve anyway are not kept twice.
+    private static final class TruncatedAnswers {
+        private final ConcurrentHashMap<List<Object>, Answer> answers = new ConcurrentHashMap<>();
+
+        void remember(InetAddress client, byte[] request, byte[] resp, int len) {
+            CacheKey q = CacheKey.probe(request);
+            if (q == null) return;
+            long now = TIMERS.millis();
+            if (CACHE_ENABLED) {
+                CacheEntry e = CACHE.lookup(q, now);
+                if (e != null && now < e.expiresAt) return;
+            }
+            if (answers.size() >= TC_RETRY_MAX_ENTRIES) {
+                answers.values().removeIf(a -> now >= a.expiresAt);
+                if (answers.size() >= TC_RETRY_MAX_ENTRIES) return;
+            }
+            answers.put(List.of(client, q.persistent()), new Answer(Arrays.copyOf(resp, len), now + TC_RETRY_TTL_MS));
+        }
+
+        // Copy the remembered answer for this client's query into out with the query's ID and
+        // question; returns its length, or -1 if there is none
+        int take(InetAddress client, byte[] request, byte[] out) {
+            if (answers.isEmpty()) return -1;
+            CacheKey q = CacheKey.probe(request);
+            if (q == null) return -1;
+            Answer a = answers.remove(List.of(client, q.persistent()));
+            if (a == null || TIMERS.millis() >= a.expiresAt) return -1;
+            int len = copyOut(a.response, out);
+            return len > 0 && patchForRequest(out, request) ? len : -1;
+        }
+
+        private static final class Answer {
+            final byte[] response;
+            final long expiresAt;
+
+            Answer(byte[] response, long expiresAt) {
+                this.response = response;
+                this.expiresAt = expiresAt;
+            }
+        }
+    }
+
+    // Give a response built for another query the request's ID, RD bit and question bytes (keeping
+    // the client's letter case). Returns false if the two questions do not line up.
+    private static boolean patchForRequest(byte[] resp, byte[] request) {
+        int qend = findQuestionEnd(request, 12);
+        if (resp.length < qend || qend != findQuestionEnd(resp, 12)) return false;
+        System.arraycopy(request, 0, resp, 0, 2);
+        resp[2] = (byte) ((resp[2] & ~0x01) | (request[2] & 0x01));
+        System.arraycopy(request, 12, resp, 12, qend - 12);
+        return true;
+    }
+
+    // RFC 2308 section 5: the negative TTL is min(SOA TTL, SOA MINIMUM) of the SOA in the authority
+    // section. The SOA's TTL is rewritten to that value so it counts down correctly on cache hits.
+    // Returns the negative TTL in seconds (capped at NEG_CACHE_MAX_TTL_SECS), or -1 if there is no SOA.
+    private static long clampNegativeTtl(byte[] m) {
+        int qd = readU16(m, 4), an = readU16(m, 6), ns = readU16(m, 8);
+        int pos = 12;
+        for (int i = 0; i < qd; i++) {
+            pos = skipName(m, pos);
+            if (pos < 0 || pos + 4 > m.length) return -1;
+            pos += 4;
+        }
+        for (int i = 0; i < an + ns; i++) {
+            pos = skipName(m, pos);
+            if (pos < 0 || pos + 10 > m.length) return -1;
+            int rdlen = readU16(m, pos + 8);
+            if (pos + 10 + rdlen > m.length) return -1;
+            if (i >= an && readU16(m, pos) == 6 && rdlen >= 22) {
+                long ttl = readU32(m, pos + 4);
+                if (ttl > Integer.MAX_VALUE) ttl = 0;
+                long minimum = readU32(m, pos + 10 + rdlen - 4);
+                ttl = Math.min(Math.min(ttl, minimum), NEG_CACHE_MAX_TTL_SECS);
+                writeU32(m, pos + 4, ttl);
+                return ttl;
+            }
+            pos += 10 + rdlen;
+        }
+        return -1;
+    }
+
+    private static void logCacheStats() {
+        String offHeap = SLABS == null ? "" : String.format(", off-heap %d used / %d reserved bytes", SLABS.usedBytes(), SLABS.reservedBytes());
+        CACHE.sweepClientUsage();
+        SIBLINGS.sweep(TIMERS.millis());
+        log("Cache: " + CACHE.bytesUsed() + " bytes used (" + CACHE.stats() + ")" + offHeap + ", " + FAILURES.size() + " failing questions"
+                + (SIBLING_PREFETCH ? ", " + SIBLINGS.stats() : ""));
+        log("Upstreams: " + UPSTREAMS);
+    }
+
+    // --------------------
+    // Cache snapshot (warm restarts)
+    // --------------------
+    // File layout: magic, version, record count, then per record: flags (bit 0 set for a negative
+    // entry, bits 1-2 the key's CD/DO bits), subnet length + ECS subnet bytes (0 for shared entries), storedAt, expiresAt (epoch millis),
+    // length, response bytes.
+    private static final int SNAPSHOT_MAGIC = 0x46444F48; // "FDOH"
+    private static final int SNAPSHOT_VERSION = 3;
+    private static final int SNAPSHOT_BUFFER_BYTES = 1 << 17; // write buffer; holds the largest record
+
+    private static synchronized void saveCacheSnapshot() {
+        try {
+            long now = TIMERS.millis();
+            List<byte[]> responses = new ArrayList<>();
+            List<CacheEntry> entries = new ArrayList<>();
+            List<byte[]> subnets = new ArrayList<>();
+            List<Boolean> kinds = new ArrayList<>();
+            List<Integer> dnssecs = new ArrayList<>();
+            long size = 12;
+            for (int kind = 0; kind < 2; kind++) {
+                for (Map.Entry<CacheKey, CacheEntry> me : (kind == 0 ? CACHE.positiveEntries() : CACHE.negativeEntries()).entrySet()) {
+                    CacheEntry e = me.getValue();
+                    if (now >= e.expiresAt) continue;
+                    byte[] resp = e.copyResponse();
+                    if (resp == null) continue;
+                    byte[] subnet = me.getKey().subnet == null ? new byte[0] : me.getKey().subnet;
+                    responses.add(resp);
+                    entries.add(e);
+                    subnets.add(subnet);
+                    kinds.add(kind == 1);
+                    dnssecs.add(me.getKey().dnssec);
+                    size += 22 + subnet.length + resp.length;
+                }
+            }
+
+            File target = new File(CACHE_SNAPSHOT_FILE);
+            File tmp = new File(CACHE_SNAPSHOT_FILE + ".tmp");
+            // Plain channel writes rather than a mapping: a mapped file stays mapped until the buffer is
+            // garbage collected, and on Windows it cannot be moved or replaced until then
+            try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer mb = ByteBuffer.allocate(SNAPSHOT_BUFFER_BYTES);
+                mb.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(responses.size());
+                for (int i = 0; i < responses.size(); i++) {
+                    CacheEntry e = entries.get(i);
+                    byte[] resp = responses.get(i);
+                    byte[] subnet = subnets.get(i);
+                    if (mb.remaining() < 22 + subnet.length + resp.length) writeFully(ch, mb);
+                    mb.put((byte) ((kinds.get(i) ? 1 : 0) | dnssecs.get(i) << 1)).put((byte) subnet.length).put(subnet);
+                    mb.putLong(e.storedAt).putLong(e.expiresAt).putInt(resp.length).put(resp);
+                }
+                writeFully(ch, mb);
+                ch.force(true);
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log("Saved cache snapshot: " + responses.size() + " entries (" + size + " bytes) to " + CACHE_SNAPSHOT_FILE);
+        } catch (Exception e) {
+            log("Cache snapshot save failed: " + e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+    }
+
+    // Write out what buf holds and empty it
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) ch.write(buf);
+        buf.clear();
+    }
+
+    // Reload a snapshot written by a previous run, skipping entries that expired while we were down
+    private static void loadCacheSnapshot() {
+        File f = new File(CACHE_SNAPSHOT_FILE);
+        if (!f.isFile()) return;
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                log("Ignoring cache snapshot " + CACHE_SNAPSHOT_FILE + " (too large)");
+                return;
+            }
+            ByteBuffer mb = ByteBuffer.allocate((int) ch.size());
+            while (mb.hasRemaining()) {
+                if (ch.read(mb) < 0) break;
+            }
+            mb.flip();
+            if (mb.remaining() < 12 || mb.getInt() != SNAPSHOT_MAGIC || mb.getInt() != SNAPSHOT_VERSION) {
+                log("Ignoring cache snapshot " + CACHE_SNAPSHOT_FILE + " (unknown format)");
+                return;
+            }
+            long now = TIMERS.millis();
+            int count = mb.getInt(), loaded = 0;
+            for (int i = 0; i < count && mb.remaining() >= 22; i++) {
+                int flags = mb.get();
+                boolean isNegative = (flags & 1) != 0;
+                int subnetLen = mb.get() & 0xFF;
+                if (subnetLen + 20 > mb.remaining()) break;
+                byte[] subnet = new byte[subnetLen];
+                mb.get(subnet);
+                long storedAt = mb.getLong();
+                long expiresAt = mb.getLong();
+                int len = mb.getInt();
+                if (len < 12 || len > mb.remaining()) break;
+                byte[] resp = new byte[len];
+                mb.get(resp);
+                if (now >= expiresAt) continue;
+                CacheKey key = CacheKey.fromQuestion(resp);
+                if (key == null) continue;
+                key = key.withDnssec(flags >> 1 & 3);
+                CACHE.restore(subnetLen == 0 ? key : key.forSubnet(subnet), resp, storedAt, expiresAt, isNegative);
+                loaded++;
+            }
+            log("Loaded " + loaded + " of " + count + " cache entries from " + CACHE_SNAPSHOT_FILE);
+        } catch (Exception e) {
+            log("Cache snapshot load failed: " + e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+    }
+
+    // --------------------
+    // Cache warmup
+    // --------------------
+    // Resolves the most frequent questions of earlier days so the first clients after a restart
+    // see hits. CACHE_WARMUP_FILE holds one question per line, most frequent first:
+    //
+    //     [count] [?] name [type]
+    //
+    // where type is a mnemonic, a number or "type=N" (default A), and # starts a comment. That is
+    // the shape of `uniq -c` over the "? name type=N" part of the server's own query log lines (see
+    // README). Questions still fresh from the snapshot are skipped.
+    private static void warmCache() {
+        File f = new File(CACHE_WARMUP_FILE);
+        if (!f.isFile()) return;
+        List<CacheKey> keys = new ArrayList<>();
+        List<byte[]> queries = new ArrayList<>();
+        Set<CacheKey> seen = new HashSet<>();
+        int skipped = 0;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), java.nio.charset.StandardCharsets.ISO_8859_1))) {
+            String line;
+            while ((line = r.readLine()) != null && keys.size() < CACHE_WARMUP_MAX_QUESTIONS) {
+                byte[] query = parseWarmupLine(line);
+                if (query == null) {
+                    if (!line.trim().isEmpty() && !line.trim().startsWith("#")) skipped++;
+                    continue;
+                }
+                CacheKey key = CacheKey.fromQuestion(query);
+                if (key == null || !seen.add(key)) continue;
+                keys.add(key);
+                queries.add(query);
+            }
+        } catch (IOException e) {
+            log("Cache warmup file " + CACHE_WARMUP_FILE + " unreadable: " + e.getMessage());
+            return;
+        }
+        if (ECS_ENABLED) {
+            log("Cache warmup skipped: with ECS every entry belongs to a client subnet");
+            return;
+        }
+        if (skipped > 0) log("Cache warmup: ignoring " + skipped + " malformed lines in " + CACHE_WARMUP_FILE);
+        log("Cache warmup: resolving up to " + keys.size() + " questions from " + CACHE_WARMUP_FILE + " (" + CACHE_WARMUP_PARALLELISM + " at a time)");
+
+        long start = TIMERS.millis();
+        AtomicInteger warmed = new AtomicInteger(), cached = new AtomicInteger(), failed = new AtomicInteger();
+        Semaphore inFlight = new Semaphore(CACHE_WARMUP_PARALLELISM);
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                CacheKey key = keys.get(i);
+                CacheEntry e = CACHE.lookup(key, TIMERS.millis());
+                if (e != null && TIMERS.millis() < e.expiresAt) {
+                    cached.incrementAndGet();
+                    continue;
+                }
+                inFlight.acquire();
+                refresh(key, queries.get(i), null).whenComplete((resp, t) -> {
+                    (resp != null && resp.length >= 12 && (resp[3] & 0x0F) != 2 ? warmed : failed).incrementAndGet();
+                    inFlight.release();
+                });
+            }
+            inFlight.acquire(CACHE_WARMUP_PARALLELISM); // wait for the last queries
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        log("Cache warmup done in " + (TIMERS.millis() - start) + "ms: " + warmed.get() + " resolved, "
+                + cached.get() + " already cached, " + failed.get() + " failed");
+    }
+
+    // Query for one line of the warmup file; null for blank, comment or malformed lines
+    private static byte[] parseWarmupLine(String line) {
+        int hash = line.indexOf('#');
+        String[] tok = (hash >= 0 ? line.substring(0, hash) : line).trim().split("\\s+");
+        int i = 0;
+        if (i < tok.length && tok[i].matches("\\d+")) i++; // uniq -c count
+        if (i < tok.length && tok[i].equals("?")) i++;
+        if (i >= tok.length || tok[i].isEmpty() || tok[i].equals("<unknown>")) return null;
+        String name = tok[i++];
+        int qtype = 1;
+        if (i < tok.length) {
+            try {
+                qtype = parseQType(tok[i].startsWith("type=") ? tok[i].substring(5) : tok[i]);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return buildQuery(name, qtype, 1);
+    }
+
+    // --------------------
+    // Off-heap slab storage
+    // --------------------
+    // Keeps cached responses and their TTL offset tables outside the Java heap. Only the payload
+    // moves: keys, entry objects, the shard index and its timers stay on the heap (about 550 bytes
+    // per entry, see --bench weight), so GC work still grows with the number of entries.
+    // Direct ByteBuffer slabs are carved into fixed-size chunks, one size class per power of two
+    // from 64 to 4096 bytes. Free chunks are kept on primitive int stacks, and callers only hold a
+    // long handle: size class (4 bits) | slab (28 bits) | chunk (16 bits) | length (16 bits).
+    private static final class SlabAllocator {
+        static final int MIN_SHIFT = 6;   // 64 bytes
+        static final int MAX_SHIFT = 12;  // 4096 bytes
+        static final int MAX_CHUNK = 1 << MAX_SHIFT;
+
+        private final long maxBytes;
+        private final int slabSize;
+        private final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+        private final AtomicLong reservedBytes = new AtomicLong(); // total size of allocated slabs
+        private final AtomicLong usedBytes = new AtomicLong();     // total size of chunks handed out
+
+        SlabAllocator(long maxBytes, int slabSize) {
+            this.maxBytes = maxBytes;
+            this.slabSize = slabSize;
+            for (int i = 0; i < classes.length; i++) classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+        }
+
+        // Copy src into a free chunk followed by shorts as big-endian 16-bit values; returns its
+        // handle, or -1 if the budget is exhausted
+        long allocate(byte[] src, int[] shorts) {
+            int len = src.length + 2 * shorts.length;
+            int c = classFor(len);
+            SizeClass sc = classes[c];
+            int slot;
+            synchronized (sc) {
+                if (sc.freeTop == 0 && !grow(sc)) return -1;
+                slot = sc.free[--sc.freeTop];
+            }
+            int slab = slot >>> 16, chunk = slot & 0xFFFF;
+            ByteBuffer b = sc.slabs[slab];
+            int base = chunk * sc.chunkSize;
+            b.put(base, src, 0, src.length);
+            for (int i = 0; i < shorts.length; i++) b.putShort(base + src.length + 2 * i, (short) shorts[i]);
+            usedBytes.addAndGet(sc.chunkSize);
+            return ((long) c << 60) | ((long) slab << 32) | ((long) chunk << 16) | len;
+        }
+
+        // Copy the first n stored bytes of the chunk to the start of dst
+        void readInto(long handle, byte[] dst, int n) {
+            SizeClass sc = classes[(int) (handle >>> 60)];
+            int slab = (int) ((handle >>> 32) & 0x0FFFFFFF), chunk = (int) ((handle >>> 16) & 0xFFFF);
+            sc.slabs[slab].get(chunk * sc.chunkSize, dst, 0, n);
+        }
+
+        void free(long handle) {
+            SizeClass sc = classes[(int) (handle >>> 60)];
+            int slot = (int) ((handle >>> 16) & 0xFFFFFFFFL);
+            synchronized (sc) { sc.free[sc.freeTop++] = slot; }
+            usedBytes.addAndGet(-sc.chunkSize);
+        }
+
+        static int chunkSize(long handle) { return 1 << (MIN_SHIFT + (int) (handle >>> 60)); }
+        static int storedLength(long handle) { return (int) (handle & 0xFFFF); }
+
+        long reservedBytes() { return reservedBytes.get(); }
+        long usedBytes() { return usedBytes.get(); }
+
+        private static int classFor(int len) {
+            int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, len) - 1));
+            return shift - MIN_SHIFT;
+        }
+
+        // Add one slab to a size class (caller holds its lock)
+        private boolean grow(SizeClass sc) {
+            if (reservedBytes.get() + slabSize > maxBytes) return false;
+            ByteBuffer slab;
+            try {
+                slab = ByteBuffer.allocateDirect(slabSize);
+            } catch (OutOfMemoryError oom) {
+                log("Off-heap cache: direct memory exhausted (" + oom.getMessage() + ")");
+                return false;
+            }
+            reservedBytes.addAndGet(slabSize);
+            int index = sc.slabs.length;
+            int chunks = slabSize / sc.chunkSize;
+            ByteBuffer[] slabs = Arrays.copyOf(sc.slabs, index + 1);
+            slabs[index] = slab;
+            sc.slabs = slabs;
+            if (sc.free.length < sc.freeTop + chunks) sc.free = Arrays.copyOf(sc.free, sc.freeTop + chunks);
+            for (int i = chunks - 1; i >= 0; i--) sc.free[sc.freeTop++] = (index << 16) | i;
+            return true;
+        }
+
+        private static final class SizeClass {
+            final int chunkSize;
+            volatile ByteBuffer[] slabs = new ByteBuffer[0]; // copy-on-write so readers need no lock
+            int[] free = new int[0];                         // stack of (slab << 16 | chunk)
+            int freeTop;
+
+            SizeClass(int chunkSize) { this.chunkSize = chunkSize; }
+        }
+    }
+
+    // --------------------
+    // Timers and coarse clock
+    // --------------------
+    // Hierarchical timer wheel (as in the Linux kernel and Kafka) driven by one daemon thread that
+    // also publishes a coarse clock. Five levels of 64 slots cover 10ms, 640ms, 41s, 44min and 46h
+    // per slot; a timer sits in the slot of the level that matches how far away it is and moves
+    // down a level each time the level below wraps. Scheduling and cancelling are O(1) no matter how
+    // many timers are pending, so every cache entry and every in-flight query can have one.
+    // Tasks run on the wheel thread and must be short (close a socket, remove an entry, hand off work).
+    private static final class TimerWheel {
+        private static final int TICK_MS = 10;
+        private static final int SLOT_BITS = 6, SLOTS = 1 << SLOT_BITS, LEVELS = 5;
+        private static final long MAX_SPAN = 1L << (SLOT_BITS * LEVELS); // in ticks
+
+        private final Timer[][] slots = new Timer[LEVELS][SLOTS]; // circular list sentinels
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private long tick;                  // last tick processed (guarded by this)
+        private volatile long nowMillis = startMillis;
+
+        TimerWheel() {
+            for (Timer[] level : slots) {
+                for (int i = 0; i < SLOTS; i++) {
+                    Timer s = new Timer(null, 0);
+                    s.prev = s.next = s;
+                    level[i] = s;
+                }
+            }
+            Thread t = new Thread(this::run, "timer-wheel");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        // Epoch milliseconds, advanced monotonically every TICK_MS; cheaper than the system clock
+        long millis() { return nowMillis; }
+
+        Timer schedule(long delayMs, Runnable task) { return scheduleAt(nowMillis + delayMs, task); }
+
+        // Run task at (or up to one tick after) the given epoch millis
+        Timer scheduleAt(long epochMs, Runnable task) {
+            Timer t = new Timer(task, Math.max(0, epochMs - startMillis) / TICK_MS + 1);
+            synchronized (this) {
+                insert(t);
+            }
+            return t;
+        }
+
+        synchronized void cancel(Timer t) {
+            if (t.next == null) return; // fired or already cancelled
+            unlink(t);
+        }
+
+        private void run() {
+            List<Timer> due = new ArrayList<>();
+            while (true) {
+                try {
+                    Thread.sleep(TICK_MS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                long elapsed = (System.nanoTime() - startNanos) / 1_000_000;
+                nowMillis = startMillis + elapsed;
+                synchronized (this) {
+                    while (tick < elapsed / TICK_MS) advance(due);
+                }
+                for (Timer t : due) {
+                    try {
+                        t.task.run();
+                    } catch (Exception e) {
+                        log("Timer task error: " + e.getMessage());
+                    }
+                }
+                due.clear();
+            }
+        }
+
+        // Move to the next tick: cascade the upper levels whose slot comes due, then collect level 0
+        private void advance(List<Timer> due) {
+            tick++;
+            for (int level = 1; level < LEVELS && (tick & ((1L << (SLOT_BITS * level)) - 1)) == 0; level++) {
+                Timer s = slots[level][(int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1)];
+                while (s.next != s) {
+                    Timer t = s.next;
+                    unlink(t);
+                    insert(t);
+                }
+            }
+            Timer s = slots[0][(int) tick & (SLOTS - 1)];
+            while (s.next != s) {
+                Timer t = s.next;
+                unlink(t);
+                if (t.when > tick) insert(t); // beyond MAX_SPAN when scheduled; not due yet
+                else due.add(t);
+            }
+        }
+
+        private void insert(Timer t) {
+            // Timers further out than the wheel spans wait in the top level and are placed again later
+            long place = Math.min(Math.max(t.when, tick + 1), tick + MAX_SPAN - 1);
+            long delta = place - tick;
+            int level = 0;
+            while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) level++;
+            Timer s = slots[level][(int) (place >>> (SLOT_BITS * level)) & (SLOTS - 1)];
+            t.prev = s.prev;
+            t.next = s;
+            s.prev.next = t;
+            s.prev = t;
+        }
+
+        private static void unlink(Timer t) {
+            t.prev.next = t.next;
+            t.next.prev = t.prev;
+            t.prev = t.next = null;
+        }
+
+        static final class Timer {
+            final Runnable task;
+            final long when;   // tick at which it is due
+            Timer prev, next;  // slot list links while pending (guarded by the wheel)
+
+            Timer(Runnable task, long when) {
+                this.task = task;
+                this.when = when;
+            }
+
+            void cancel() { TIMERS.cancel(this); }
+        }
+    }
+
+    // --------------------
+    // Benchmarks (java FullDoHBinaryServer.java --bench <name>)
+    // --------------------
+    private static final class Benchmarks {
+        static void run(String name) throws Exception {
+            switch (name) {
+                case "policy": policyHitRatio(); break;
+                case "scaling": lookupScaling(); break;
+                case "alloc": hitPathAllocations(); break;
+                case "executors": executorModes(); break;
+                case "weight": entryWeight(); break;
+                default: System.out.println("Unknown benchmark '" + name + "' (available: policy, scaling, alloc, executors, weight)");
+            }
+        }
+
+        // Hit ratio of the W-TinyLFU CacheStore against a plain LRU of the same size on a Zipf(0.9)
+        // workload over 1M names, i.e. a few popular names plus a long tail of one-off lookups.
+        static void policyHitRatio() {
+            int names = 1_000_000, ops = 2_000_000;
+            double[] cdf = zipfCdf(names, 0.9);
+            Random rnd = new Random(42);
+            int[] trace = new int[ops];
+            for (int i = 0; i < ops; i++) {
+                int idx = Arrays.binarySearch(cdf, rnd.nextDouble());
+                trace[i] = idx < 0 ? Math.min(-idx - 1, names - 1) : idx;
+            }
+            long far = Long.MAX_VALUE / 4;
+            for (int capacity : new int[]{1_000, 10_000, 50_000}) {
+                Map<Integer, Boolean> lru = new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) { return size() > capacity; }
+                };
+                CacheEntry value = CacheEntry.create(new byte[12], 0, far);
+                // fixed-length names, so the byte budget holds exactly 'capacity' entries
+                CacheStore tiny = new CacheStore((long) capacity * CacheStore.weigh(benchKey(0), value), 1);
+                long lruHits = 0, tinyHits = 0;
+                for (int id : trace) {
+                    if (lru.get(id) != null) lruHits++; else lru.put(id, Boolean.TRUE);
+                    CacheKey key = benchKey(id);
+                    if (tiny.get(key, 0) != null) tinyHits++; else tiny.put(key, value);
+                }
+                System.out.printf("capacity=%,d  LRU hit ratio=%.2f%%  W-TinyLFU hit ratio=%.2f%%%n",
+                        capacity, 100.0 * lruHits / ops, 100.0 * tinyHits / ops);
+            }
+        }
+
+        // Lookup throughput of a sharded CacheStore from 1 to 64 threads, against a single-shard store
+        // (one lock, like the old synchronized map). 100k cached names, Zipf(0.9) lookups.
+        static void lookupScaling() throws InterruptedException {
+            int names = 100_000;
+            double[] cdf = zipfCdf(names, 0.9);
+            CacheKey[] keys = new CacheKey[names];
+            for (int i = 0; i < names; i++) keys[i] = benchKey(i);
+            Random rnd = new Random(7);
+            int[] trace = new int[1 << 20];
+            for (int i = 0; i < trace.length; i++) {
+                int idx = Arrays.binarySearch(cdf, rnd.nextDouble());
+                trace[i] = idx < 0 ? Math.min(-idx - 1, names - 1) : idx;
+            }
+            long far = Long.MAX_VALUE / 4;
+            for (int shards : new int[]{1, CACHE_SHARDS}) {
+                CacheStore store = new CacheStore(1L << 30, shards);
+                for (CacheKey k : keys) store.put(k, CacheEntry.create(new byte[64], 0, far));
+                runLookups(store, keys, trace, 4, 1000); // warm-up
+                double base = 0;
+                for (int threads = 1; threads <= 64; threads *= 2) {
+                    double mops = runLookups(store, keys, trace, threads, 500) / 1e6;
+                    if (threads == 1) base = mops;
+                    System.out.printf("shards=%-3d threads=%-2d %8.2f M lookups/s  (x%.1f)%n", store.shardCount(), threads, mops, mops / base);
+                }
+            }
+        }
+
+        // Returns lookups per second across all threads
+        private static double runLookups(CacheStore store, CacheKey[] keys, int[] trace, int threads, long millis) throws InterruptedException {
+            AtomicLong total = new AtomicLong();
+            CountDownLatch start = new CountDownLatch(1);
+            long[] deadline = new long[1];
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int offset = t * 7919;
+                workers[t] = new Thread(() -> {
+                    try { start.await(); } catch (InterruptedException e) { return; }
+                    long n = 0;
+                    int i = offset;
+                    while ((n & 1023) != 0 || System.nanoTime() < deadline[0]) {
+                        store.get(keys[trace[i++ & (trace.length - 1)]], 0);
+                        n++;
+                    }
+                    total.addAndGet(n);
+                });
+                workers[t].start();
+            }
+            long begin = System.nanoTime();
+            deadline[0] = begin + millis * 1_000_000;
+            start.countDown();
+            for (Thread w : workers) w.join();
+            return total.get() * 1e9 / (System.nanoTime() - begin);
+        }
+
+        // Allocation check of the cache hit path as the handlers run it (answerNow on the shared CACHE):
+        // counts the bytes this thread allocates over 1M hits and exits with status 1 if it is not zero.
+        static void hitPathAllocations() throws UnknownHostException {
+            byte[] query = benchQuery(0x1234, "www.example.com", 1);
+            byte[] answer = benchAnswer(query, 300, 4);
+            CACHE.put(CacheKey.probe(query).persistent(), answer);
+            // With ECS the entry lives under the client's subnet key (a public address has one)
+            InetAddress client = InetAddress.getLoopbackAddress(), remote = InetAddress.getByAddress(new byte[]{(byte) 203, 0, 113, 7});
+            byte[] ecsQuery = benchQuery(0x1234, "ecs.example.com", 1);
+            byte[] ecsAnswer = benchAnswer(ecsQuery, 300, 3);
+            CACHE.put(CacheKey.probe(ecsQuery).persistent().forSubnet(ecsSubnet(remote)), ecsAnswer);
+
+            // hits must match case-insensitively
+            long allocated = hitAllocations("cache hit path", benchQuery(0x4321, "WWW.Example.COM", 1), client, false, answer.length)
+                    + hitAllocations("cache hit path with ECS", benchQuery(0x4321, "ECS.Example.COM", 1), remote, true, ecsAnswer.length);
+            if (allocated > 0) {
+                System.out.println("FAIL: cache hit path allocates");
+                System.exit(1);
+            }
+            System.out.println("OK: cache hit path is allocation-free");
+        }
+
+        // Bytes this thread allocates over 1M answerNow hits for query
+        private static long hitAllocations(String label, byte[] query, InetAddress client, boolean ecs, int expectedLength) {
+            com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            byte[] out = new byte[MAX_DNS_MESSAGE];
+            long sink = 0;
+            int iterations = 1_000_000;
+            long allocated = 0, nanos = 0;
+            for (int round = 0; round < 3; round++) { // the first rounds warm up the JIT
+                long before = mx.getCurrentThreadAllocatedBytes(), begin = System.nanoTime();
+                for (int i = 0; i < iterations; i++) sink += answerNow(query, out, client, ecs);
+                nanos = System.nanoTime() - begin;
+                allocated = mx.getCurrentThreadAllocatedBytes() - before;
+            }
+            if (sink != (long) 3 * iterations * expectedLength) {
+                System.out.println("FAIL: " + label + " missed");
+                System.exit(1);
+            }
+            System.out.printf("%s: %d bytes allocated over %,d hits (%.3f bytes/hit, %d ns/hit)%n",
+                    label, allocated, iterations, (double) allocated / iterations, nanos / iterations);
+            return allocated;
+        }
+
+        // Heap retained per cached entry (key, entry, shard node and map slot, suffix index nodes,
+        // expiry timer) next to what CacheStore.weigh charges for it, for names that bring one, two
+        // or three labels of their own into the index. FAIL if entries cost more than they are charged.
+        static void entryWeight() {
+            int n = 100_000;
+            for (int unique = 1; unique <= 3; unique++) {
+                CacheStore store = new CacheStore((long) n * 2048, 16);
+                long heapBefore = usedHeap(), weight = 0, now = TIMERS.millis();
+                for (int i = 0; i < n; i++) {
+                    String name = (unique > 2 ? "a" + i + "." : "") + (unique > 1 ? "w" + i + "." : "") + "h" + i + ".com";
+                    byte[] query = benchQuery(i, name, 1);
+                    CacheKey key = CacheKey.fromQuestion(query);
+                    CacheEntry e = CacheEntry.create(benchAnswer(query, 3600, 2), now, now + 3_600_000);
+                    weight += CacheStore.weigh(key, e);
+                    store.put(key, e);
+                }
+                long heap = usedHeap() - heapBefore;
+                System.out.printf("%d unique label(s): %d entries, %d bytes/entry on the heap, %d bytes/entry charged%n",
+                        unique, store.size(), heap / n, weight / n);
+                if (heap > weight) {
+                    System.out.println("FAIL: cache entries use more heap than they are charged for");
+                    System.exit(1);
+                }
+                store.purge(null, true, -1);
+            }
+            System.out.println("OK: entry weights cover their heap cost");
+        }
+
+        // 10,000 concurrent queries against an upstream that answers after 10 ms, handled three ways:
+        // workers that block on the answer on the THREADS pool (the pre-async design), the same on
+        // virtual threads (JDK 21+), and the asynchronous pipeline on the THREADS pool. Reports the
+        // time until every query has its answer.
+        static void executorModes() throws InterruptedException {
+            int queries = 10_000, upstreamMs = 10;
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+            runQueries("platform pool (" + THREADS + "), blocking", pool, queries, upstreamMs, true);
+            ExecutorService virtual = virtualThreadExecutor();
+            if (virtual == null) System.out.println("virtual threads, blocking: skipped (needs JDK 21)");
+            else runQueries("virtual threads, blocking", virtual, queries, upstreamMs, true);
+            runQueries("platform pool (" + THREADS + "), async", pool, queries, upstreamMs, false);
+            pool.shutdown();
+            if (virtual != null) virtual.shutdown();
+        }
+
+        private static void runQueries(String mode, ExecutorService exec, int queries, int upstreamMs, boolean blocking) throws InterruptedException {
+            CountDownLatch done = new CountDownLatch(queries);
+            byte[] answer = new byte[64];
+            long begin = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                exec.execute(() -> {
+                    CompletableFuture<byte[]> upstream = new CompletableFuture<>();
+                    TIMERS.schedule(upstreamMs, () -> upstream.complete(answer));
+                    if (blocking) {
+                        upstream.join();
+                        done.countDown();
+                    } else {
+                        upstream.whenCompleteAsync((r, t) -> done.countDown(), exec);
+                    }
+                });
+            }
+            done.await();
+            double secs = (System.nanoTime() - begin) / 1e9;
+            System.out.printf("%-32s %,d queries in %6.2f s  (%,.0f queries/s)%n", mode, queries, secs, queries / secs);
+        }
+
+        private static long usedHeap() {
+            for (int i = 0; i < 3; i++) System.gc();
+            Runtime rt = Runtime.getRuntime();
+            return rt.totalMemory() - rt.freeMemory();
+        }
+
+        // Standard query with RD set and a single question
+        static byte[] benchQuery(int id, String name, int qtype) {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            b.write(id >> 8); b.write(id); b.write(0x01); b.write(0);
+            b.write(0); b.write(1); b.write(0); b.write(0); b.write(0); b.write(0); b.write(0); b.write(0);
+            for (String label : name.split("\\.")) {
+                b.write(label.length());
+                b.writeBytes(label.getBytes());
+            }
+            b.write(0);
+            b.write(qtype >> 8); b.write(qtype); b.write(0); b.write(1);
+            return b.toByteArray();
+        }
+
+        // NOERROR answer to query with 'count' A records (owner compressed to the question name)
+        static byte[] benchAnswer(byte[] query, int ttl, int count) {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            byte[] header = query.clone();
+            header[2] = (byte) 0x81; header[3] = (byte) 0x80; header[6] = 0; header[7] = (byte) count;
+            b.writeBytes(header);
+            for (int i = 0; i < count; i++) {
+                b.write(0xC0); b.write(12); b.write(0); b.write(1); b.write(0); b.write(1);
+                b.write(ttl >>> 24); b.write(ttl >>> 16); b.write(ttl >>> 8); b.write(ttl);
+                b.write(0); b.write(4); b.write(192); b.write(0); b.write(2); b.write(i);
+            }
+            return b.toByteArray();
+        }
+
+        private static CacheKey benchKey(int id) {
+            return CacheKey.of(String.format("n%07d.example", id), 1, 1);
+        }
+
+        private static double[] zipfCdf(int n, double s) {
+            double[] cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) cdf[i] = (sum += 1.0 / Math.pow(i + 1, s));
+            for (int i = 0; i < n; i++) cdf[i] /= sum;
+            return cdf;
+        }
+    }
+
+    // --------------------
+    // Utilities
+    // --------------------
+    private static void log(String s) { if (LOG) System.out.println("[" + Instant.ofEpochMilli(TIMERS.millis()) + "] " + s); }
+    private static void logf(String fmt, Object... args) { if (LOG) System.out.println("[" + Instant.ofEpochMilli(TIMERS.millis()) + "] " + String.format(fmt, args)); }
+}
+
+